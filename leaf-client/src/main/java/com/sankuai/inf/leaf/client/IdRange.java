@@ -0,0 +1,27 @@
+package com.sankuai.inf.leaf.client;
+
+/**
+ * 一段连续的 id：[start, start + count)
+ */
+public class IdRange {
+    private final long start;
+    private final int count;
+
+    public IdRange(long start, int count) {
+        this.start = start;
+        this.count = count;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "IdRange{start=" + start + ", count=" + count + '}';
+    }
+}
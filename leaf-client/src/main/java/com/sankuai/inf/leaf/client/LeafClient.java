@@ -0,0 +1,163 @@
+package com.sankuai.inf.leaf.client;
+
+import com.sankuai.inf.leaf.protocol.LeafProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Leaf 二进制协议的客户端，线程安全，多个线程共用一条长连接：请求发出后不等待响应，
+ * 由读线程按 requestId 把响应交给对应的调用方，同一时刻可以有任意多个请求在途
+ */
+public class LeafClient implements Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final long timeoutMillis;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, Call> pending = new ConcurrentHashMap<Integer, Call>();
+    private final Map<String, byte[]> keys = new ConcurrentHashMap<String, byte[]>();  // tag 的 UTF-8 编码，每个 tag 只编码一次
+    private volatile IOException failure;   // 连接断开的原因，之后的请求直接失败
+
+    public LeafClient(String host, int port) throws IOException {
+        this(host, port, 1000);
+    }
+
+    public LeafClient(String host, int port, long timeoutMillis) throws IOException {
+        this.timeoutMillis = timeoutMillis;
+        this.socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), (int) timeoutMillis);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(in);
+            }
+        }, "Thread-Leaf-Client-Reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public long getSegmentId(String tag) {
+        return single(call(LeafProtocol.TYPE_SEGMENT, tag, 1));
+    }
+
+    public List<IdRange> getSegmentIds(String tag, int count) {
+        return call(LeafProtocol.TYPE_SEGMENT, tag, count);
+    }
+
+    public long getSnowflakeId(String tag) {
+        return single(call(LeafProtocol.TYPE_SNOWFLAKE, tag, 1));
+    }
+
+    public List<IdRange> getSnowflakeIds(String tag, int count) {
+        return call(LeafProtocol.TYPE_SNOWFLAKE, tag, count);
+    }
+
+    private long single(List<IdRange> ranges) {
+        return ranges.get(0).getStart();
+    }
+
+    private List<IdRange> call(byte type, String tag, int count) {
+        if (failure != null) {
+            throw new LeafException("connection closed", failure);
+        }
+        byte[] key = keys.get(tag);
+        if (key == null) {
+            key = tag.getBytes(UTF8);
+            keys.put(tag, key);
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        Call call = new Call();
+        pending.put(requestId, call);
+        ByteBuffer buffer = ByteBuffer.allocate(LeafProtocol.requestSize(key));
+        LeafProtocol.writeRequest(buffer, requestId, type, key, count);
+        try {
+            synchronized (out) {
+                out.write(buffer.array());
+                out.flush();
+            }
+            if (!call.done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new LeafException("timeout after " + timeoutMillis + "ms", 0);
+            }
+        } catch (IOException e) {
+            throw new LeafException("send request fail", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LeafException("interrupted", e);
+        } finally {
+            pending.remove(requestId);
+        }
+        if (call.error != null) {
+            throw call.error;
+        }
+        return call.ranges;
+    }
+    // 读线程：逐个解析响应帧，交给等待中的调用方，超时已经返回的调用方对应的响应直接丢弃
+    private void read(DataInputStream in) {
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 5 || length > LeafProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("illegal frame length " + length);
+                }
+                int requestId = in.readInt();
+                byte status = in.readByte();
+                Call call = pending.get(requestId);
+                if (status == LeafProtocol.STATUS_OK) {
+                    int rangeCount = in.readShort();
+                    List<IdRange> ranges = new ArrayList<IdRange>(rangeCount);
+                    for (int i = 0; i < rangeCount; i++) {
+                        long start = in.readLong();
+                        ranges.add(new IdRange(start, in.readInt()));
+                    }
+                    if (call != null) {
+                        call.ranges = ranges;
+                        call.done.countDown();
+                    }
+                } else {
+                    long code = in.readLong();
+                    if (call != null) {
+                        call.error = new LeafException("leaf server error " + code, code);
+                        call.done.countDown();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            for (Call call : pending.values()) {
+                call.error = new LeafException("connection closed", e);
+                call.done.countDown();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private static class Call {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private List<IdRange> ranges;   // 由 done 保证可见性
+        private LeafException error;
+    }
+}
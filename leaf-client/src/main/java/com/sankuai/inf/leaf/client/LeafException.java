@@ -0,0 +1,24 @@
+package com.sankuai.inf.leaf.client;
+
+/**
+ * 取号失败，code 为服务端返回的错误码，连接异常或者超时时为 0
+ */
+public class LeafException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long code;
+
+    public LeafException(String msg, long code) {
+        super(msg);
+        this.code = code;
+    }
+
+    public LeafException(String msg, Throwable cause) {
+        super(msg, cause);
+        this.code = 0;
+    }
+
+    public long getCode() {
+        return code;
+    }
+}
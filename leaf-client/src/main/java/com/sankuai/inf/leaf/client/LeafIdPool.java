@@ -0,0 +1,337 @@
+package com.sankuai.inf.leaf.client;
+
+import com.sankuai.inf.leaf.protocol.LeafProtocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在调用方进程内缓存号段 id：每个 tag 一个本地缓冲，剩余 id 低于水位线时由后台线程通过 LeafClient 批量取号补充，
+ * 和服务端 SegmentBuffer 的双 buffer 是同一个思路，正常情况下取号只是一次本地的原子自增，不经过网络。
+ * 补充失败时按顺序切换到下一个 Leaf 节点重试；服务端返回的错误码（例如 tag 不存在）除了繁忙以外不会重试
+ */
+public class LeafIdPool implements Closeable {
+    private final List<InetSocketAddress> nodes;
+    private final ConcurrentHashMap<String, TagBuffer> buffers = new ConcurrentHashMap<String, TagBuffer>();
+    private final ExecutorService refillExecutor;
+    private final Object connectionLock = new Object();
+    private LeafClient client;  // 当前使用的连接，由 connectionLock 保护
+    private int node;   // 当前连接的节点下标，由 connectionLock 保护
+    private volatile boolean closed;
+
+    private int batchSize = 1000;   // 每次补充时批量获取的 id 个数
+    private int lowWaterMark = -1;  // 本地剩余 id 低于该值时开始补充，小于 0 时等于 batchSize
+    private long timeoutMillis = 1000;  // 连接、单次请求以及本地缓冲耗尽时等待补充的超时时间
+    private int maxAttempts = -1;   // 一次补充最多尝试的次数，小于 0 时为节点数的两倍
+    private long retryIntervalMillis = 50;  // 两次尝试之间的间隔
+
+    /**
+     * @param addresses Leaf 节点的二进制协议地址，格式为 host:port
+     */
+    public LeafIdPool(String... addresses) {
+        if (addresses.length == 0) {
+            throw new IllegalArgumentException("no leaf node");
+        }
+        List<InetSocketAddress> list = new ArrayList<InetSocketAddress>();
+        for (String address : addresses) {
+            int index = address.lastIndexOf(':');
+            list.add(InetSocketAddress.createUnresolved(address.substring(0, index),
+                    Integer.parseInt(address.substring(index + 1))));
+        }
+        this.nodes = Collections.unmodifiableList(list);
+        this.refillExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Thread-Leaf-Prefetch-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public long nextId(String tag) {
+        TagBuffer buffer = buffers.get(tag);
+        if (buffer == null) {
+            buffer = new TagBuffer(tag);
+            TagBuffer existing = buffers.putIfAbsent(tag, buffer);
+            if (existing != null) {
+                buffer = existing;
+            }
+        }
+        return buffer.next();
+    }
+
+    public PrefetchStats getStats(String tag) {
+        TagBuffer buffer = buffers.get(tag);
+        return buffer == null ? null : buffer.stats();
+    }
+
+    public List<PrefetchStats> getStats() {
+        List<PrefetchStats> stats = new ArrayList<PrefetchStats>();
+        for (TagBuffer buffer : buffers.values()) {
+            stats.add(buffer.stats());
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        refillExecutor.shutdownNow();
+        synchronized (connectionLock) {
+            if (client != null) {
+                client.close();
+                client = null;
+            }
+        }
+    }
+    // 依次尝试各个节点批量取号，连接异常或者超时时关闭当前连接并切换到下一个节点
+    private List<IdRange> fetch(String tag) {
+        int attempts = maxAttempts < 0 ? nodes.size() * 2 : Math.max(maxAttempts, 1);
+        LeafException last = null;
+        for (int i = 0; i < attempts && !closed; i++) {
+            if (i > 0) {
+                try {
+                    Thread.sleep(retryIntervalMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            LeafClient current;
+            try {
+                current = connection();
+            } catch (IOException e) {
+                last = new LeafException("connect " + nodes.get(node) + " fail", e);
+                failover(null);
+                continue;
+            }
+            try {
+                return current.getSegmentIds(tag, batchSize);
+            } catch (LeafException e) {
+                if (e.getCode() != 0 && e.getCode() != LeafProtocol.ERROR_BUSY) {  // 服务端的错误码，换节点也一样；服务端繁忙时换节点重试
+                    throw e;
+                }
+                last = e;
+                failover(current);
+            }
+        }
+        throw last != null ? last : new LeafException("leaf id pool closed", 0);
+    }
+
+    private LeafClient connection() throws IOException {
+        synchronized (connectionLock) {
+            if (client == null) {
+                InetSocketAddress address = nodes.get(node);
+                client = new LeafClient(address.getHostString(), address.getPort(), timeoutMillis);
+            }
+            return client;
+        }
+    }
+    // 只有出错的还是当前连接时才切换，避免并发补充的多个 tag 连续跳过好几个节点
+    private void failover(LeafClient failed) {
+        synchronized (connectionLock) {
+            if (client != failed) {
+                return;
+            }
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+                client = null;
+            }
+            node = (node + 1) % nodes.size();
+        }
+    }
+
+    private int lowWaterMark() {
+        return lowWaterMark < 0 ? batchSize : lowWaterMark;
+    }
+
+    /**
+     * 一段本地的 id：[cursor, end)，cursor 可能被并发自增到超过 end
+     */
+    private static class Block {
+        private final AtomicLong cursor;
+        private final long end;
+
+        Block(long start, long end) {
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    private class TagBuffer {
+        private final String tag;
+        private volatile Block current = new Block(0, 0);
+        private final Queue<Block> ready = new ConcurrentLinkedQueue<Block>();  // 已经取回还没开始使用的 id 段
+        private final AtomicLong queued = new AtomicLong();   // ready 中 id 的总数
+        private final AtomicBoolean refilling = new AtomicBoolean(false);
+        private volatile long completed;    // 已经结束（成功或失败）的补充次数，只在后台线程中写
+        private volatile LeafException lastFailure;
+        private final AtomicLong refills = new AtomicLong();
+        private final AtomicLong refillFailures = new AtomicLong();
+        private final AtomicLong waits = new AtomicLong();
+        private volatile long lastRefillMillis; // 同一个 tag 同时只有一个补充任务，这两个字段只有一个线程在写
+        private volatile long maxRefillMillis;
+        private final AtomicLong totalRefillMillis = new AtomicLong();
+
+        TagBuffer(String tag) {
+            this.tag = tag;
+        }
+
+        long next() {
+            while (true) {
+                Block block = current;
+                long id = block.cursor.getAndIncrement();
+                if (id < block.end) {
+                    if (block.end - id - 1 + queued.get() < lowWaterMark()) {
+                        refillAsync();
+                    }
+                    return id;
+                }
+                switchBlock(block);
+            }
+        }
+        // 当前段用完，换成下一个已经取回的段，没有的话等待后台补充
+        private synchronized void switchBlock(Block exhausted) {
+            if (current != exhausted) {   // 其他线程已经切换过了
+                return;
+            }
+            Block block = ready.poll();
+            if (block == null) {
+                waits.incrementAndGet();
+                long deadline = System.currentTimeMillis() + timeoutMillis;
+                while ((block = ready.poll()) == null) {
+                    long generation = completed;
+                    refillAsync();
+                    long remaining = deadline - System.currentTimeMillis();
+                    try {
+                        while (completed == generation && remaining > 0) {
+                            wait(remaining);
+                            remaining = deadline - System.currentTimeMillis();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new LeafException("interrupted", e);
+                    }
+                    if (!ready.isEmpty()) {
+                        continue;
+                    }
+                    if (completed != generation && lastFailure != null) {
+                        throw lastFailure;
+                    }
+                    if (remaining <= 0) {
+                        throw new LeafException("wait for ids of " + tag + " timeout after " + timeoutMillis + "ms", 0);
+                    }
+                }
+            }
+            queued.addAndGet(-(block.end - block.cursor.get()));
+            current = block;
+        }
+
+        private void refillAsync() {
+            if (closed || !refilling.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                refillExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        refill();
+                    }
+                });
+            } catch (RuntimeException e) {  // 线程池已经关闭
+                refilling.set(false);
+            }
+        }
+
+        private void refill() {
+            long start = System.currentTimeMillis();
+            try {
+                for (IdRange range : fetch(tag)) {
+                    queued.addAndGet(range.getCount());
+                    ready.add(new Block(range.getStart(), range.getStart() + range.getCount()));
+                }
+                long millis = System.currentTimeMillis() - start;
+                lastRefillMillis = millis;
+                maxRefillMillis = Math.max(maxRefillMillis, millis);
+                totalRefillMillis.addAndGet(millis);
+                refills.incrementAndGet();
+                lastFailure = null;
+            } catch (LeafException e) {
+                refillFailures.incrementAndGet();
+                lastFailure = e;
+            } finally {
+                refilling.set(false);
+                synchronized (this) {
+                    completed++;
+                    notifyAll();
+                }
+            }
+        }
+
+        PrefetchStats stats() {
+            Block block = current;
+            long depth = Math.max(block.end - block.cursor.get(), 0) + queued.get();
+            return new PrefetchStats(tag, depth, refills.get(), refillFailures.get(), waits.get(),
+                    lastRefillMillis, maxRefillMillis, totalRefillMillis.get());
+        }
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getLowWaterMark() {
+        return lowWaterMark();
+    }
+
+    public void setLowWaterMark(int lowWaterMark) {
+        this.lowWaterMark = lowWaterMark;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getRetryIntervalMillis() {
+        return retryIntervalMillis;
+    }
+
+    public void setRetryIntervalMillis(long retryIntervalMillis) {
+        this.retryIntervalMillis = retryIntervalMillis;
+    }
+}
@@ -0,0 +1,74 @@
+package com.sankuai.inf.leaf.client;
+
+/**
+ * LeafIdPool 中一个 tag 的本地缓冲的统计信息快照
+ */
+public class PrefetchStats {
+    private final String tag;
+    private final long depth;
+    private final long refills;
+    private final long refillFailures;
+    private final long waits;
+    private final long lastRefillMillis;
+    private final long maxRefillMillis;
+    private final long totalRefillMillis;
+
+    public PrefetchStats(String tag, long depth, long refills, long refillFailures, long waits,
+                         long lastRefillMillis, long maxRefillMillis, long totalRefillMillis) {
+        this.tag = tag;
+        this.depth = depth;
+        this.refills = refills;
+        this.refillFailures = refillFailures;
+        this.waits = waits;
+        this.lastRefillMillis = lastRefillMillis;
+        this.maxRefillMillis = maxRefillMillis;
+        this.totalRefillMillis = totalRefillMillis;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+    // 本地还剩余的 id 个数
+    public long getDepth() {
+        return depth;
+    }
+    // 成功从服务端补充的次数
+    public long getRefills() {
+        return refills;
+    }
+    // 所有节点重试完仍然失败的补充次数
+    public long getRefillFailures() {
+        return refillFailures;
+    }
+    // 本地缓冲耗尽，调用方不得不等待补充完成的次数
+    public long getWaits() {
+        return waits;
+    }
+
+    public long getLastRefillMillis() {
+        return lastRefillMillis;
+    }
+
+    public long getMaxRefillMillis() {
+        return maxRefillMillis;
+    }
+
+    public long getAvgRefillMillis() {
+        return refills == 0 ? 0 : totalRefillMillis / refills;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("PrefetchStats{");
+        sb.append("tag='").append(tag).append('\'');
+        sb.append(", depth=").append(depth);
+        sb.append(", refills=").append(refills);
+        sb.append(", refillFailures=").append(refillFailures);
+        sb.append(", waits=").append(waits);
+        sb.append(", lastRefillMillis=").append(lastRefillMillis);
+        sb.append(", maxRefillMillis=").append(maxRefillMillis);
+        sb.append(", avgRefillMillis=").append(getAvgRefillMillis());
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package com.sankuai.inf.leaf.client;
+
+import com.sankuai.inf.leaf.protocol.LeafProtocol;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LeafClientTest {
+    private ServerSocket serverSocket;
+    private final AtomicLong sequence = new AtomicLong(1);
+
+    /**
+     * 模拟服务端：已经读到的请求按相反的顺序响应（最多攒两个），验证客户端按 requestId 而不是按顺序匹配响应；
+     * key 为 error 时返回错误码 -2
+     */
+    @Before
+    public void before() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                List<ByteBuffer> responses = new ArrayList<ByteBuffer>();
+                while (responses.isEmpty() || (responses.size() < 2 && in.available() > 0)) {
+                    in.readInt();
+                    int requestId = in.readInt();
+                    in.readByte();
+                    byte[] key = new byte[in.readShort()];
+                    in.readFully(key);
+                    int count = in.readInt();
+                    ByteBuffer response;
+                    if ("error".equals(new String(key, "UTF-8"))) {
+                        response = ByteBuffer.allocate(LeafProtocol.errorSize());
+                        LeafProtocol.writeError(response, requestId, -2);
+                    } else {
+                        response = ByteBuffer.allocate(LeafProtocol.rangesSize(1));
+                        LeafProtocol.writeRangesHeader(response, requestId, 1);
+                        LeafProtocol.writeRange(response, sequence.getAndAdd(count), count);
+                    }
+                    responses.add(response);
+                }
+                Collections.reverse(responses);
+                for (ByteBuffer response : responses) {
+                    out.write(response.array());
+                }
+                out.flush();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    @After
+    public void after() throws IOException {
+        serverSocket.close();
+    }
+
+    @Test
+    public void testConcurrentCalls() throws Exception {
+        final LeafClient client = new LeafClient("localhost", serverSocket.getLocalPort());
+        final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            if (!ids.add(client.getSegmentId("leaf-segment-test"))) {
+                                errors.add(new AssertionError("duplicate id"));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Assert.assertEquals(2000, ids.size());
+        client.close();
+    }
+
+    @Test
+    public void testRangesAndError() throws Exception {
+        final LeafClient client = new LeafClient("localhost", serverSocket.getLocalPort());
+        final List<IdRange> ranges = Collections.synchronizedList(new ArrayList<IdRange>());
+        Thread batch = new Thread(new Runnable() {  // 批量请求和出错的请求同时在途
+            @Override
+            public void run() {
+                ranges.addAll(client.getSnowflakeIds("leaf-segment-test", 100));
+            }
+        });
+        batch.start();
+        try {
+            client.getSegmentId("error");
+            Assert.fail();
+        } catch (LeafException e) {
+            Assert.assertEquals(-2, e.getCode());
+        }
+        batch.join();
+        Assert.assertEquals(1, ranges.size());
+        Assert.assertEquals(100, ranges.get(0).getCount());
+        client.close();
+    }
+}
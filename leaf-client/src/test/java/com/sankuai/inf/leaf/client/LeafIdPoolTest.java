@@ -0,0 +1,148 @@
+package com.sankuai.inf.leaf.client;
+
+import com.sankuai.inf.leaf.protocol.LeafProtocol;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LeafIdPoolTest {
+    private ServerSocket serverSocket;
+    private final AtomicLong sequence = new AtomicLong(1);
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * 模拟服务端：按请求的个数分配连续的 id，key 为 error 时返回错误码 -2
+     */
+    @Before
+    public void before() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                in.readInt();
+                int requestId = in.readInt();
+                in.readByte();
+                byte[] key = new byte[in.readShort()];
+                in.readFully(key);
+                int count = in.readInt();
+                requests.incrementAndGet();
+                ByteBuffer response;
+                if ("error".equals(new String(key, "UTF-8"))) {
+                    response = ByteBuffer.allocate(LeafProtocol.errorSize());
+                    LeafProtocol.writeError(response, requestId, -2);
+                } else {
+                    response = ByteBuffer.allocate(LeafProtocol.rangesSize(1));
+                    LeafProtocol.writeRangesHeader(response, requestId, 1);
+                    LeafProtocol.writeRange(response, sequence.getAndAdd(count), count);
+                }
+                out.write(response.array());
+                out.flush();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    @After
+    public void after() throws IOException {
+        serverSocket.close();
+    }
+
+    @Test
+    public void testConcurrentNextId() throws Exception {
+        final LeafIdPool pool = new LeafIdPool("localhost:" + serverSocket.getLocalPort());
+        pool.setBatchSize(100);
+        final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            if (!ids.add(pool.nextId("leaf-segment-test"))) {
+                                errors.add(new AssertionError("duplicate id"));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Assert.assertEquals(8000, ids.size());
+        PrefetchStats stats = pool.getStats("leaf-segment-test");
+        Assert.assertTrue(requests.get() - stats.getRefills() <= 1);  // 最后可能还有一次补充在途
+        Assert.assertTrue(stats.getRefills() >= 80);
+        pool.close();
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        ServerSocket down = new ServerSocket(0);
+        down.close();
+        LeafIdPool pool = new LeafIdPool("localhost:" + down.getLocalPort(), "localhost:" + serverSocket.getLocalPort());
+        pool.setRetryIntervalMillis(0);
+        Assert.assertEquals(1, pool.nextId("leaf-segment-test"));
+        Assert.assertEquals(2, pool.nextId("leaf-segment-test"));
+        Assert.assertEquals(0, pool.getStats("leaf-segment-test").getRefillFailures());
+        pool.close();
+    }
+
+    @Test
+    public void testServerError() throws Exception {
+        LeafIdPool pool = new LeafIdPool("localhost:" + serverSocket.getLocalPort());
+        try {
+            pool.nextId("error");
+            Assert.fail();
+        } catch (LeafException e) {
+            Assert.assertEquals(-2, e.getCode());
+        }
+        Assert.assertEquals(1, requests.get()); // 服务端的错误码不会重试
+        Assert.assertEquals(1, pool.getStats("error").getRefillFailures());
+        pool.close();
+    }
+}
@@ -1,8 +1,14 @@
 package com.sankuai.inf.leaf;
 
+import com.sankuai.inf.leaf.common.BatchResult;
 import com.sankuai.inf.leaf.common.Result;
 
 public interface IDGen {
     Result get(String key);
+    /**
+     * 不分配对象的取号方式，成功时返回非负的 id，失败时返回负数的错误码，和 get(key) 失败时 Result 中的 id 相同
+     */
+    long nextId(String key);
+    BatchResult get(String key, int count);
     boolean init();
 }
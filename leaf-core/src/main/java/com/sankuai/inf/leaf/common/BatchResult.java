@@ -0,0 +1,54 @@
+package com.sankuai.inf.leaf.common;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量获取 id 的结果，成功时 id 以若干段连续区间的形式给出，失败时 code 为对应的异常码
+ */
+public class BatchResult {
+    private List<IdRange> ranges;
+    private long code;
+    private Status status;
+
+    public BatchResult(List<IdRange> ranges) {
+        this.ranges = ranges;
+        this.status = Status.SUCCESS;
+    }
+
+    public BatchResult(long code, Status status) {
+        this.ranges = Collections.emptyList();
+        this.code = code;
+        this.status = status;
+    }
+
+    public List<IdRange> getRanges() {
+        return ranges;
+    }
+
+    public long getCode() {
+        return code;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+    // 所有区间包含的 id 总数
+    public int getCount() {
+        int count = 0;
+        for (IdRange range : ranges) {
+            count += range.getCount();
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("BatchResult{");
+        sb.append("ranges=").append(ranges);
+        sb.append(", code=").append(code);
+        sb.append(", status=").append(status);
+        sb.append('}');
+        return sb.toString();
+    }
+}
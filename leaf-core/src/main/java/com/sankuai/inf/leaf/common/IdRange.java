@@ -0,0 +1,31 @@
+package com.sankuai.inf.leaf.common;
+
+/**
+ * 一段连续的 id，[start, start + count)
+ */
+public class IdRange {
+    private final long start;
+    private final int count;
+
+    public IdRange(long start, int count) {
+        this.start = start;
+        this.count = count;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("IdRange{");
+        sb.append("start=").append(start);
+        sb.append(", count=").append(count);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -15,6 +15,11 @@ public class Result {
         this.status = status;
     }
 
+    // 把 nextId 的返回值包装成 Result，负数是错误码
+    public static Result of(long id) {
+        return new Result(id, id < 0 ? Status.EXCEPTION : Status.SUCCESS);
+    }
+
     public long getId() {
         return id;
     }
@@ -2,6 +2,8 @@ package com.sankuai.inf.leaf.common;
 
 import com.sankuai.inf.leaf.IDGen;
 
+import java.util.Collections;
+
 /**
  * 默认的 id 生成器，它只会产生 0 值
  */
@@ -11,6 +13,16 @@ public class ZeroIDGen implements IDGen {
         return new Result(0, Status.SUCCESS);
     }
 
+    @Override
+    public long nextId(String key) {
+        return 0;
+    }
+
+    @Override
+    public BatchResult get(String key, int count) {
+        return new BatchResult(Collections.singletonList(new IdRange(0, count)));   // 未开启的模式，和号段模式一样只给出一个区间，不按个数分配对象
+    }
+
     @Override
     public boolean init() {
         return true;
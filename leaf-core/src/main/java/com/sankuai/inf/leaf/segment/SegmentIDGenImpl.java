@@ -1,8 +1,11 @@
 package com.sankuai.inf.leaf.segment;
 
 import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.IdRange;
 import com.sankuai.inf.leaf.common.Result;
 import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.segment.dao.AsyncIDAllocDao;
 import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
 import com.sankuai.inf.leaf.segment.model.*;
 import org.perf4j.StopWatch;
@@ -12,7 +15,6 @@ import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class SegmentIDGenImpl implements IDGen {
     private static final Logger logger = LoggerFactory.getLogger(SegmentIDGenImpl.class);
@@ -30,16 +32,98 @@ public class SegmentIDGenImpl implements IDGen {
      */
     private static final long EXCEPTION_ID_TWO_SEGMENTS_ARE_NULL = -3;
     /**
-     * 最大步长不超过100,0000
+     * 批量获取的 id 个数不合法时的异常码
+     */
+    private static final long EXCEPTION_ID_ILLEGAL_COUNT = -4;
+    /**
+     * 每消耗 2^10 个 id 采样一次消耗速率
+     */
+    private static final int SAMPLE_SHIFT = 10;
+    /**
+     * 默认最大步长不超过100,0000
      */
     private static final int MAX_STEP = 1000000;
     /**
-     * 一个Segment维持时间为15分钟
+     * 默认一个Segment维持时间为15分钟
      */
     private static final long SEGMENT_DURATION = 15 * 60 * 1000L;
-    private ExecutorService service = new ThreadPoolExecutor(5, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new UpdateThreadFactory());
+    /**
+     * 默认的装载线程数和排队上限
+     */
+    private static final int LOADER_THREADS = 5;
+    private static final int LOADER_QUEUE_CAPACITY = 1024;
+    private volatile SegmentLoader loader = new SegmentLoader(LOADER_THREADS, LOADER_QUEUE_CAPACITY);
     private volatile boolean initOK = false;
-    private Map<String, SegmentBuffer> cache = new ConcurrentHashMap<String, SegmentBuffer>();
+    /**
+     * 当前 segment 用完时，等待另一个 segment 装载完成的最长时间，单位毫秒
+     */
+    private volatile long waitTimeout = 10;
+    /**
+     * 剩余的 id 预计在 prefetchSafety 倍的 DB 装载耗时内用完时开始装载下一个 segment
+     */
+    private volatile double prefetchSafety = 3;
+    /**
+     * tag 没有配置 max_step 时的最大步长
+     */
+    private volatile int maxStep = MAX_STEP;
+    /**
+     * 期望一个 segment 维持的时间，单位毫秒，步长按照消耗速率乘以该时间计算
+     */
+    private volatile long segmentDuration = SEGMENT_DURATION;
+    /**
+     * 同步 tag 的间隔，单位秒，需要在 init 之前设置
+     */
+    private volatile long syncInterval = 60;
+    /**
+     * 是否通过 leaf_alloc_tags_version 表判断 tag 有没有变化
+     */
+    private volatile boolean tagsVersionEnabled = false;
+    /**
+     * 没有版本表时，每隔多少轮增量同步做一次全量同步
+     */
+    private static final int FULL_SYNC_ROUNDS = 10;
+    /**
+     * 懒加载模式：第一次请求某个 tag 时才创建 buffer，空闲的 buffer 会被淘汰，需要在 init 之前设置
+     */
+    private volatile boolean lazyLoad = false;
+    /**
+     * 懒加载模式下 buffer 超过该时间没有被访问就被淘汰，单位秒
+     */
+    private volatile long idleTtl = 600;
+    /**
+     * 懒加载模式下最多缓存的 buffer 数，超过后淘汰最久没有访问的，0 表示不限制
+     */
+    private volatile int maxTags = 0;
+    /**
+     * 懒加载模式下 DB 中不存在的 tag 在该时间内直接返回 key 不存在，不再访问 DB，单位毫秒
+     */
+    private volatile long missingTagTtl = 5000;
+    /**
+     * 预热并发装载的线程数，大于 0 时 init 之后在后台为 tag 装载当前和下一个 segment，全部完成后才就绪
+     */
+    private volatile int warmUpThreads = 0;
+    /**
+     * 只预热这些 tag，为空时预热所有 tag；懒加载模式下只能预热这里列出的 tag
+     */
+    private volatile Set<String> warmUpTags = Collections.emptySet();
+    private final CountDownLatch warmedUp = new CountDownLatch(1);
+    /**
+     * 为热点 tag 预留的应急号段能支撑的分钟数，按当前消耗速率计算大小，0 表示不预留
+     */
+    private volatile long reserveMinutes = 0;
+    /**
+     * 连续装载失败多少次后启用应急号段
+     */
+    private volatile int reserveAfterFailures = 3;
+    /**
+     * 本地日志，为 null 时不记录，重启后丢弃所有 segment 中剩余的 id
+     */
+    private SegmentJournal journal;
+    private int syncRound;  // 以下三个字段只在 init 和同步线程中访问
+    private Date syncWatermark = new Date(0);
+    private long tagsVersion = -1;
+    private ConcurrentMap<String, SegmentBuffer> cache = new ConcurrentHashMap<String, SegmentBuffer>();
+    private final ConcurrentMap<String, Long> missingTags = new ConcurrentHashMap<String, Long>(); // 懒加载模式下不存在的 tag -> 过期时间
     private IDAllocDao dao;
 
     public static class UpdateThreadFactory implements ThreadFactory {
@@ -59,14 +143,150 @@ public class SegmentIDGenImpl implements IDGen {
     @Override   // 初始化，主要是完成了从数据库中获取全部的 biz-tag 信息再更新缓存的过程，另外启动了一个每分钟从数据库更新缓存的任务
     public boolean init() {
         logger.info("Init ...");
-        // 确保加载到kv后才初始化成功
-        updateCacheFromDb();    // 主要是根据数据库中当前 biz-tag，来刷新缓存的 biz-tag 和 buffer（加入新增的，移除失效的）
-        initOK = true;  // 更新状态
-        updateCacheFromDbAtEveryMinute();   // 每隔 1 分钟执行一次更新 cache 缓存
+        if (lazyLoad) { // 懒加载模式下不预先创建 buffer，只定期淘汰空闲的 buffer
+            restoreFromJournal();
+            initOK = true;
+            evictIdleBuffersPeriodically();
+        } else {
+            // 确保加载到kv后才初始化成功
+            updateCacheFromDb();    // 主要是根据数据库中当前 biz-tag，来刷新缓存的 biz-tag 和 buffer（加入新增的，移除失效的）
+            restoreFromJournal();
+            initOK = true;  // 更新状态
+            updateCacheFromDbPeriodically();   // 每隔 syncInterval 秒同步一次 cache 缓存
+        }
+        if (warmUpThreads > 0) {
+            warmUpInBackground();
+        } else {
+            warmedUp.countDown();
+        }
         return initOK;
     }
-    // 每隔 1 分钟执行一次更新 cache 缓存
-    private void updateCacheFromDbAtEveryMinute() {
+    // 用本地日志中记录的 [leased, max) 直接初始化 buffer 的当前 segment，不再访问 DB 更新 max_id；
+    // 一次查询全部 tag，日志中的 max 超过 DB 的 max_id 说明日志不是这个库分配的（比如库被重建过），丢弃对应的记录
+    private void restoreFromJournal() {
+        if (journal == null || journal.getEntries().isEmpty()) {
+            return;
+        }
+        Map<String, LeafAlloc> leafAllocs = new HashMap<String, LeafAlloc>();
+        try {
+            for (LeafAlloc leafAlloc : dao.getAllLeafAllocs()) {
+                leafAllocs.put(leafAlloc.getKey(), leafAlloc);
+            }
+        } catch (Exception e) {
+            logger.warn("restore from journal exception", e);
+            return;
+        }
+        int restored = 0;
+        for (SegmentJournal.Entry entry : journal.getEntries().values()) {
+            LeafAlloc leafAlloc = leafAllocs.get(entry.getTag());
+            if (leafAlloc == null || entry.getLeased() >= entry.getMax() || entry.getMax() > leafAlloc.getMaxId()
+                    || entry.getMax() - entry.getLeased() > Integer.MAX_VALUE) {
+                continue;
+            }
+            SegmentBuffer buffer = cache.get(entry.getTag());
+            if (buffer == null && lazyLoad) {
+                buffer = newBuffer(entry.getTag());
+                SegmentBuffer existing = cache.putIfAbsent(entry.getTag(), buffer);
+                buffer = existing == null ? buffer : existing;
+            }
+            if (buffer == null) {
+                continue;
+            }
+            synchronized (buffer) {
+                if (buffer.isInitOk()) {
+                    continue;
+                }
+                buffer.setStep(leafAlloc.getStep());    // updateTimestamp 仍为 0，下一个 segment 按 DB 中的 step 装载
+                updateStepBounds(buffer, leafAlloc);
+                buffer.setChunkSize(Math.max(leafAlloc.getChunkSize(), 0));
+                buffer.setConfiguredDepth(leafAlloc.getRingDepth());
+                Segment segment = buffer.getCurrent();
+                segment.getValue().set(entry.getLeased());
+                segment.setMax(entry.getMax());
+                segment.setStep((int) (entry.getMax() - entry.getLeased()));
+                segment.setLeased(entry.getLeased());
+                segment.setStartNanos(System.nanoTime());
+                buffer.setInitOk(true);
+            }
+            restored++;
+        }
+        logger.info("restore {} tags from journal", restored);
+    }
+    // 发出 [.., end) 之前确认 end 没有超过 segment 在本地日志中的租约，超过时先推进租约
+    private void checkpoint(SegmentBuffer buffer, Segment segment, long end) {
+        if (journal != null && end > segment.getLeased()) {
+            journal.lease(buffer.getKey(), segment, end);
+        }
+    }
+    // 预热期间可以正常取号，只是还没有装载的 tag 要同步访问 DB，预热完成后 isReady 才返回 true
+    private void warmUpInBackground() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warmUp();
+                } catch (Exception e) {
+                    logger.warn("warm up exception", e);
+                } finally {
+                    warmedUp.countDown();
+                }
+            }
+        }, "Thread-Segment-WarmUp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    // 最多 warmUpThreads 个 tag 同时访问 DB，每个 tag 装载当前 segment 和下一个 segment
+    private void warmUp() throws InterruptedException {
+        Collection<String> tags = warmUpTags.isEmpty() ? new ArrayList<String>(cache.keySet()) : warmUpTags;
+        logger.info("warm up {} tags with {} threads", tags.size(), warmUpThreads);
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(warmUpThreads, new UpdateThreadFactory());
+        for (final String tag : tags) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SegmentBuffer buffer = getBuffer(tag);  // 装载当前 segment，懒加载模式下同时创建 buffer
+                    if (buffer != null) {
+                        warmUpNextSegment(buffer);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        logger.info("warm up {} tags cost {}ms", tags.size(), System.currentTimeMillis() - start);
+    }
+    // 和异步装载一样通过 threadRunning 保证同一个 buffer 只有一个线程在装载，已经有取号触发的装载时直接跳过
+    private void warmUpNextSegment(SegmentBuffer buffer) {
+        if (buffer.getReadyCount() > 0 || !buffer.getThreadRunning().compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Segment next = new Segment(buffer);
+            long start = System.nanoTime();
+            if (!updateSegmentFromDb(buffer.getKey(), next)) {
+                return;
+            }
+            buffer.recordLoadLatency((System.nanoTime() - start) / 1000000.0);
+            buffer.append(next);
+            logger.info("warm up segment {} from db {}", buffer.getKey(), next);
+        } catch (Exception e) {
+            logger.warn(buffer.getKey() + " warm up exception", e);
+        } finally {
+            buffer.getThreadRunning().set(false);
+            buffer.signalWaiters();
+        }
+    }
+    // 预热完成（或者没有开启预热）后返回 true，负载均衡据此决定是否把流量切过来
+    public boolean isReady() {
+        return warmedUp.getCount() == 0;
+    }
+
+    public boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        return warmedUp.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    // 每隔 syncInterval 秒同步一次 cache 缓存
+    private void updateCacheFromDbPeriodically() {
         ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -78,187 +298,590 @@ public class SegmentIDGenImpl implements IDGen {
         });
         service.scheduleWithFixedDelay(new Runnable() {
             @Override
-            public void run() { // 每隔 1 分钟执行一次更新缓存的操作
-                updateCacheFromDb();    // 主要是根据数据库中当前 biz-tag，来刷新缓存的 biz-tag 和 buffer（加入新增的，移除失效的）
+            public void run() {
+                syncCacheFromDb();
+            }
+        }, syncInterval, syncInterval, TimeUnit.SECONDS);
+    }
+    // 开启版本表时，版本号没变就什么都不做，变了再全量同步；否则每 FULL_SYNC_ROUNDS 轮全量同步一次，其余轮次只增量加入新增的 tag，
+    // 删除的 tag 和增量查询漏掉的 tag 在下一次全量同步时处理
+    void syncCacheFromDb() {
+        try {
+            if (tagsVersionEnabled) {
+                long version = dao.getTagsVersion();
+                if (version != tagsVersion) {
+                    updateCacheFromDb();
+                    tagsVersion = version;
+                }
+            } else if (++syncRound % FULL_SYNC_ROUNDS == 0) {
+                updateCacheFromDb();
+            } else {
+                updateCacheFromDbIncrementally();
             }
-        }, 60, 60, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            logger.warn("sync cache from db exception", e);
+        }
     }
-    // 主要是根据数据库中当前 biz-tag，来刷新缓存的 biz-tag 和 buffer（加入新增的，移除失效的）
+    // 只查询水位之后新建的 tag（按 create_time，取号更新的 update_time 不影响结果），把其中还没有缓存的加入缓存，水位回退 1 秒以覆盖 create_time 精度只到秒的情况
+    private void updateCacheFromDbIncrementally() {
+        StopWatch sw = new Slf4JStopWatch();
+        try {
+            Date now = dao.getCurrentTime();
+            List<String> tags = dao.getTagsCreatedSince(new Date(syncWatermark.getTime() - 1000));
+            for (String tag : tags) {
+                if (!cache.containsKey(tag)) {
+                    addTag(tag);
+                }
+            }
+            syncWatermark = now;
+        } catch (Exception e) {
+            logger.warn("update cache from db incrementally exception", e);
+        } finally {
+            sw.stop("updateCacheFromDbIncrementally");
+        }
+    }
+    // 全量查询所有 tag，通过 HashSet 和缓存做差集，加入新增的，移除失效的
     private void updateCacheFromDb() {
         logger.info("update cache from db");
         StopWatch sw = new Slf4JStopWatch();
         try {
+            Date now = dao.getCurrentTime();    // 先读水位再全量查询，之后新增的 tag 会被下一次增量同步查到
             List<String> dbTags = dao.getAllTags(); // 从数据库中查询所有的 biz_tag 字段的值
             if (dbTags == null || dbTags.isEmpty()) {   // 数据库中 biz-tag 字段为空，直接返回
                 return;
             }
-            List<String> cacheTags = new ArrayList<String>(cache.keySet()); // 获取已经缓存到 biz-tag 集合
-            List<String> insertTags = new ArrayList<String>(dbTags);    // 这是从数据库中查出的 biz-tag 集合
-            List<String> removeTags = new ArrayList<String>(cacheTags); // 缓存中的 biz-tag
+            Set<String> dbTagSet = new HashSet<String>(dbTags);
             //db中新加的tags灌进cache
-            insertTags.removeAll(cacheTags);    // 这里是相对于缓存中新增的 biz-tag
-            for (String tag : insertTags) { // 大致就是构建新增 biz-tag 的 key value 对，然后进行缓存
-                SegmentBuffer buffer = new SegmentBuffer(); // 构建了持有的两个内部 Segment，完成了相关参数的初始化
-                buffer.setKey(tag); // SegmentBuffer 和 biz-tag 对应
-                Segment segment = buffer.getCurrent();  // 获取当前使用的 Segment
-                segment.setValue(new AtomicLong(0));    // 设置了 value（暂时不清粗用来干啥的）
-                segment.setMax(0);  // 设置最大值和步进值（这里只是初始化，稍后应该是使用从数据库查出来的步进值和最大值）
-                segment.setStep(0);
-                cache.put(tag, buffer); // 缓存和 tag 对应的 buffer
-                logger.info("Add tag {} from db to IdCache, SegmentBuffer {}", tag, buffer);
+            for (String tag : dbTagSet) {
+                if (!cache.containsKey(tag)) {
+                    addTag(tag);
+                }
             }
             //cache中已失效的tags从cache删除
-            removeTags.removeAll(dbTags);   // 得到缓存中存在，但是数据库中已经失效的 biz-tag
-            for (String tag : removeTags) {
-                cache.remove(tag);  // 移除失效的 biz-tag
-                logger.info("Remove tag {} from IdCache", tag);
+            for (String tag : cache.keySet()) {
+                if (!dbTagSet.contains(tag)) {
+                    cache.remove(tag);  // 移除失效的 biz-tag
+                    logger.info("Remove tag {} from IdCache", tag);
+                }
             }
+            syncWatermark = now;
         } catch (Exception e) {
             logger.warn("update cache from db exception", e);
         } finally {
             sw.stop("updateCacheFromDb");
         }
     }
+    // 大致就是构建新增 biz-tag 的 key value 对，然后进行缓存
+    private void addTag(String tag) {
+        SegmentBuffer buffer = newBuffer(tag);
+        cache.put(tag, buffer); // 缓存和 tag 对应的 buffer
+        logger.info("Add tag {} from db to IdCache, SegmentBuffer {}", tag, buffer);
+    }
+
+    private SegmentBuffer newBuffer(String tag) {
+        SegmentBuffer buffer = new SegmentBuffer(); // 构建了持有的内部 Segment，完成了相关参数的初始化
+        buffer.setKey(tag); // SegmentBuffer 和 biz-tag 对应
+        Segment segment = buffer.getCurrent();  // 获取当前使用的 Segment
+        segment.setMax(0);  // 设置最大值和步进值（这里只是初始化，稍后应该是使用从数据库查出来的步进值和最大值）
+        segment.setStep(0);
+        return buffer;
+    }
+    // 每隔 idleTtl 的十分之一执行一次空闲 buffer 的淘汰
+    private void evictIdleBuffersPeriodically() {
+        ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("evict-idCache-thread");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(idleTtl / 10, 1);
+        service.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evictIdleBuffers();
+                } catch (Exception e) {
+                    logger.warn("evict idle buffers exception", e);
+                }
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+    // 取号时只设置 accessed 标记，这里把被访问过的 buffer 的最近访问时间更新为当前时间，
+    // 淘汰超过 idleTtl 没有访问的 buffer，buffer 数超过 maxTags 时再按最近访问时间淘汰最久没有访问的，号段中剩余的 id 直接丢弃
+    void evictIdleBuffers() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : missingTags.entrySet()) {
+            if (entry.getValue() <= now) {
+                missingTags.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        List<SegmentBuffer> buffers = new ArrayList<SegmentBuffer>(cache.values());
+        List<SegmentBuffer> alive = new ArrayList<SegmentBuffer>(buffers.size());
+        for (SegmentBuffer buffer : buffers) {
+            if (buffer.isAccessed()) {
+                buffer.setAccessed(false);
+                buffer.setLastAccess(now);
+            }
+            if (now - buffer.getLastAccess() > idleTtl * 1000) {
+                evict(buffer);
+            } else {
+                alive.add(buffer);
+            }
+        }
+        if (maxTags > 0 && alive.size() > maxTags) {
+            Collections.sort(alive, new Comparator<SegmentBuffer>() {
+                @Override
+                public int compare(SegmentBuffer o1, SegmentBuffer o2) {
+                    return o1.getLastAccess() < o2.getLastAccess() ? -1 : (o1.getLastAccess() == o2.getLastAccess() ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < alive.size() - maxTags; i++) {
+                evict(alive.get(i));
+            }
+        }
+    }
+
+    private void evict(SegmentBuffer buffer) {
+        if (cache.remove(buffer.getKey(), buffer)) {
+            logger.info("Evict idle tag {} from IdCache", buffer.getKey());
+        }
+    }
+    // 取 key 对应的 buffer，第一次使用时从数据库装载当前 segment；懒加载模式下 buffer 不存在时创建，
+    // 装载失败（tag 不存在或者 DB 异常）时移除，下次请求会重新装载，返回 null 表示 tag 不可用；
+    // 不存在的 tag 记录 missingTagTtl 毫秒，期间的请求直接返回，不会每次都访问 DB
+    private SegmentBuffer getBuffer(String key) {
+        SegmentBuffer buffer = cache.get(key);  // 拿到 key 对应的 buffer
+        if (buffer == null) {
+            if (!lazyLoad || isMissing(key)) {
+                return null;
+            }
+            SegmentBuffer created = newBuffer(key);
+            buffer = cache.putIfAbsent(key, created);
+            if (buffer == null) {
+                buffer = created;
+            }
+        }
+        boolean exists = initBufferIfNecessary(key, buffer); // 第一次使用 buffer 时从数据库装载当前 segment
+        if (lazyLoad) {
+            if (!buffer.isInitOk()) {
+                cache.remove(key, buffer);
+                if (!exists) {
+                    missingTags.put(key, System.currentTimeMillis() + missingTagTtl);
+                }
+                return null;
+            }
+            buffer.touch();
+        }
+        return buffer;
+    }
+
+    private boolean isMissing(String key) {
+        Long expireTime = missingTags.get(key);
+        if (expireTime == null) {
+            return false;
+        }
+        if (expireTime > System.currentTimeMillis()) {
+            return true;
+        }
+        missingTags.remove(key, expireTime);
+        return false;
+    }
 
     @Override
     public Result get(final String key) {
+        return Result.of(nextId(key));
+    }
+
+    @Override   // 取号的热路径，不分配对象，失败时返回负数的错误码
+    public long nextId(final String key) {
         if (!initOK) {  // 检查 SegmentIDGenImpl 的初始化状态，
-            return new Result(EXCEPTION_ID_IDCACHE_INIT_FALSE, Status.EXCEPTION);   // 如果初始化未完成，那么返回错误结果，其实内部就是两个字段，id 和 status
+            return EXCEPTION_ID_IDCACHE_INIT_FALSE;   // 如果初始化未完成，那么返回错误码
         }
-        if (cache.containsKey(key)) {   // 查看缓存中是否有 key 对应的值
-            SegmentBuffer buffer = cache.get(key);  // 拿到 key 对应的 buffer
-            if (!buffer.isInitOk()) {   // 检查 buffer 的状态（构建 buffer 时是被初始化为 false）
-                synchronized (buffer) {
-                    if (!buffer.isInitOk()) {   // 双重检查锁
-                        try {
-                            updateSegmentFromDb(key, buffer.getCurrent());
-                            logger.info("Init buffer. Update leafkey {} {} from db", key, buffer.getCurrent());
-                            buffer.setInitOk(true); // 设置 buffer 的状态
-                        } catch (Exception e) {
-                            logger.warn("Init buffer {} exception", buffer.getCurrent(), e);
+        SegmentBuffer buffer = getBuffer(key);  // 拿到 key 对应的 buffer
+        if (buffer != null) {
+            int chunkSize = buffer.getChunkSize();
+            if (chunkSize > 0) {    // 热点 tag 开启了条带模式，从线程私有的条带中取号
+                return nextIdFromStripe(buffer, chunkSize);
+            }
+            // 尝试从当前 segment 获取 id，如果获取失败，就进行 segment 的切换，如果切换失败，就直接返回错误码
+            return nextIdFromSegmentBuffer(buffer);
+        }
+        return EXCEPTION_ID_KEY_NOT_EXISTS;
+    }
+
+    @Override   // 一次性获取 count 个 id，结果以连续区间的形式返回
+    public BatchResult get(final String key, final int count) {
+        if (!initOK) {
+            return new BatchResult(EXCEPTION_ID_IDCACHE_INIT_FALSE, Status.EXCEPTION);
+        }
+        if (count <= 0) {
+            return new BatchResult(EXCEPTION_ID_ILLEGAL_COUNT, Status.EXCEPTION);
+        }
+        SegmentBuffer buffer = getBuffer(key);
+        if (buffer != null) {
+            return getIdsFromSegmentBuffer(buffer, count);
+        }
+        return new BatchResult(EXCEPTION_ID_KEY_NOT_EXISTS, Status.EXCEPTION);
+    }
+    // 检查 buffer 的状态（构建 buffer 时是被初始化为 false），未初始化时从数据库装载当前 segment，DB 中没有这个 tag 时返回 false
+    private boolean initBufferIfNecessary(String key, SegmentBuffer buffer) {
+        if (!buffer.isInitOk()) {
+            synchronized (buffer) {
+                if (!buffer.isInitOk()) {   // 双重检查锁
+                    try {
+                        long start = System.nanoTime();
+                        if (!updateSegmentFromDb(key, buffer.getCurrent())) {
+                            logger.warn("Init buffer. leafkey {} not exists in db", key);
+                            return false;
                         }
+                        buffer.recordLoadLatency((System.nanoTime() - start) / 1000000.0);
+                        buffer.getCurrent().setStartNanos(System.nanoTime());
+                        logger.info("Init buffer. Update leafkey {} {} from db", key, buffer.getCurrent());
+                        buffer.setInitOk(true); // 设置 buffer 的状态
+                    } catch (Exception e) {
+                        logger.warn("Init buffer {} exception", buffer.getCurrent(), e);
                     }
                 }
-            }   // 尝试从当前 segment 获取 id，如果获取失败，就进行 segment 的切换，如果切换失败，就直接返回异常结果
-            return getIdFromSegmentBuffer(cache.get(key));
+            }
         }
-        return new Result(EXCEPTION_ID_KEY_NOT_EXISTS, Status.EXCEPTION);
+        return true;
     }
-    // 如果 buffer 是未初始化态，从数据库中得到 key 对应的数据，设置 buffer 的 step 和 minStep 信息，如果是 update time 为 0，更新 update time 和 min step，
-    public void updateSegmentFromDb(String key, Segment segment) {  // 否则根据上一次的 update time 时间差，来动态调整 next step，将此动态 step 存入数据库，最后更新 segment
+    // 如果 buffer 是未初始化态，从数据库中得到 key 对应的数据，设置 buffer 的 step 信息，如果是 update time 为 0，更新 update time，
+    public boolean updateSegmentFromDb(String key, Segment segment) {   // 否则根据消耗速率计算 next step，按此动态 step 更新数据库，最后更新 segment 和步长上下限；tag 不存在时返回 false
         StopWatch sw = new Slf4JStopWatch();
-        SegmentBuffer buffer = segment.getBuffer(); // 获取 segment 对应的 buffer
-        LeafAlloc leafAlloc;
-        if (!buffer.isInitOk()) {   // 再次验证 buffer 的状态
-            leafAlloc = dao.updateMaxIdAndGetLeafAlloc(key);    // 就是将数据库中 tag 对应的项的 max_id 修改为 max_id + step 值，然后将这一条结果查出来，用 LeafAlloc 封装后返回
-            buffer.setStep(leafAlloc.getStep());    // 将查询出来的 step 信息填充到 buffer 中
-            buffer.setMinStep(leafAlloc.getStep()); //leafAlloc中的step为DB中的step
-        } else if (buffer.getUpdateTimestamp() == 0) {
-            leafAlloc = dao.updateMaxIdAndGetLeafAlloc(key);    // 就是将数据库中 tag 对应的项的 max_id 修改为 max_id + step 值，然后将这一条结果查出来，用 LeafAlloc 封装后返回
-            buffer.setUpdateTimestamp(System.currentTimeMillis());  // 为 buffer 设置更新的时间戳
-            buffer.setMinStep(leafAlloc.getStep());//leafAlloc中的step为DB中的step
-        } else {
+        LeafAlloc temp = nextRequest(key, segment.getBuffer());
+        LeafAlloc leafAlloc = temp.getStep() > 0 ? dao.updateMaxIdByCustomStepAndGetLeafAlloc(temp) // 根据新计算出来的步长来更新 max id，然后将当前这条更新的数据查出来
+                : dao.updateMaxIdAndGetLeafAlloc(key);  // 就是将数据库中 tag 对应的项的 max_id 修改为 max_id + step 值，然后将这一条结果查出来，用 LeafAlloc 封装后返回
+        if (leafAlloc == null) {
+            sw.stop("updateSegmentFromDb", key + " not exists");
+            return false;
+        }
+        applyLeafAlloc(segment, temp, leafAlloc);
+        sw.stop("updateSegmentFromDb", key + " " + segment);
+        return true;
+    }
+    // buffer 未初始化或者时间戳为 0 时按 DB 中的 step 更新（step 为 0），否则按消耗速率计算的 next step 更新
+    private LeafAlloc nextRequest(String key, SegmentBuffer buffer) {
+        LeafAlloc temp = new LeafAlloc();
+        temp.setKey(key);
+        if (buffer.isInitOk() && buffer.getUpdateTimestamp() != 0) {
             long duration = System.currentTimeMillis() - buffer.getUpdateTimestamp();   // 距离上次更新 segment 的时长
-            int nextStep = buffer.getStep();
-            if (duration < SEGMENT_DURATION) {  // 如果持续的时长低于门限（说明一次缓存的不够多，可能导致缓存不够及时而降低 id 获取的时效性）
-                if (nextStep * 2 > MAX_STEP) {  // 在不超过最大步长的情况下，将步长扩大为之前的两倍
-                    //do nothing
-                } else {
-                    nextStep = nextStep * 2;
-                }
-            } else if (duration < SEGMENT_DURATION * 2) {   // 如果缓存时长也没高于门限的两倍，那么就说明当前的缓存时长比较合适
-                //do nothing with nextStep
-            } else {
-                nextStep = nextStep / 2 >= buffer.getMinStep() ? nextStep / 2 : nextStep;   // 否则，在不低于最低步长的情况下将步长修改为原来的一半
-            }
-            logger.info("leafKey[{}], step[{}], duration[{}mins], nextStep[{}]", key, buffer.getStep(), String.format("%.2f",((double)duration / (1000 * 60))), nextStep);
-            LeafAlloc temp = new LeafAlloc();
-            temp.setKey(key);
+            int nextStep = nextStep(buffer);
+            logger.info("leafKey[{}], step[{}], duration[{}mins], rate[{}/ms], nextStep[{}]", key, buffer.getStep(), String.format("%.2f",((double)duration / (1000 * 60))), String.format("%.3f", buffer.getConsumeRate()), nextStep);
             temp.setStep(nextStep);
-            leafAlloc = dao.updateMaxIdByCustomStepAndGetLeafAlloc(temp);   // 根据新计算出来的步长来更新 max id，然后将当前这条更新的数据查出来
+        }
+        return temp;
+    }
+    // 用 DB 返回的结果更新 buffer 的步长、配置，以及 segment 的区间
+    private void applyLeafAlloc(Segment segment, LeafAlloc temp, LeafAlloc leafAlloc) {
+        SegmentBuffer buffer = segment.getBuffer(); // 获取 segment 对应的 buffer
+        if (temp.getStep() > 0) {
             buffer.setUpdateTimestamp(System.currentTimeMillis());  // 更新更新时间（这里差不多是进行了一个动态的调整）
-            buffer.setStep(nextStep);   // 更新步长信息
-            buffer.setMinStep(leafAlloc.getStep());//leafAlloc的step为DB中的step
+            buffer.setStep(temp.getStep()); // 更新步长信息
+        } else if (!buffer.isInitOk()) {    // 再次验证 buffer 的状态
+            buffer.setStep(leafAlloc.getStep());    // 将查询出来的 step 信息填充到 buffer 中，DB 中的 step 是 tag 的初始步长
+        } else {
+            buffer.setUpdateTimestamp(System.currentTimeMillis());  // 为 buffer 设置更新的时间戳
         }
+        updateStepBounds(buffer, leafAlloc);    // 每次装载都刷新 tag 的步长上下限
+        buffer.setChunkSize(Math.max(leafAlloc.getChunkSize(), 0));  // 每次装载都刷新 tag 的条带配置
+        buffer.setConfiguredDepth(leafAlloc.getRingDepth());    // 以及环的深度
         // must set value before set max
         long value = leafAlloc.getMaxId() - buffer.getStep();   // 根据最大值和 step 值计算起始值
         segment.getValue().set(value);  // 设置 value 起始值
         segment.setMax(leafAlloc.getMaxId());   // 设置当前 segment 的 max id
         segment.setStep(buffer.getStep());  // 设置当前 segment 的 step
-        sw.stop("updateSegmentFromDb", key + " " + segment);
+    }
+    // dao 支持异步时提交后立即返回，回调在 dao 的线程中执行，deadline 越早越先更新；否则在当前线程中访问 DB 并直接回调
+    private void allocate(LeafAlloc temp, long deadline, AsyncIDAllocDao.Callback callback) {
+        if (dao instanceof AsyncIDAllocDao) {
+            ((AsyncIDAllocDao) dao).updateMaxIdAsync(temp, deadline, callback);
+            return;
+        }
+        LeafAlloc leafAlloc;
+        long start = System.nanoTime();
+        try {
+            leafAlloc = temp.getStep() > 0 ? dao.updateMaxIdByCustomStepAndGetLeafAlloc(temp) : dao.updateMaxIdAndGetLeafAlloc(temp.getKey());
+        } catch (RuntimeException e) {
+            callback.onFailure(e);
+            return;
+        }
+        callback.onSuccess(leafAlloc, System.nanoTime() - start);
+    }
+    // 按照消耗速率让下一个 segment 维持 segmentDuration，限制在 tag 的步长上下限之间；
+    // 还没有采样到消耗速率说明 tag 很冷，直接使用最小步长，避免重启后浪费大段 id
+    private int nextStep(SegmentBuffer buffer) {
+        double rate = buffer.getConsumeRate();
+        double target = rate > 0 ? Math.ceil(rate * segmentDuration) : buffer.getMinStep();
+        return (int) Math.min(Math.max(target, buffer.getMinStep()), buffer.getMaxStep());
+    }
+    // min_step、max_step 为 0 时分别使用 DB 中的初始步长和全局的 maxStep
+    private void updateStepBounds(SegmentBuffer buffer, LeafAlloc leafAlloc) {
+        int max = leafAlloc.getMaxStep() > 0 ? leafAlloc.getMaxStep() : maxStep;
+        int min = leafAlloc.getMinStep() > 0 ? leafAlloc.getMinStep() : leafAlloc.getStep();
+        buffer.setMaxStep(max);
+        buffer.setMinStep(Math.min(min, max));
     }
     // 尝试从当前 segment 获取 id，如果获取失败，就进行 segment 的切换，如果切换失败，就直接返回异常结果
     public Result getIdFromSegmentBuffer(final SegmentBuffer buffer) {
+        return Result.of(nextIdFromSegmentBuffer(buffer));
+    }
+
+    private long nextIdFromSegmentBuffer(final SegmentBuffer buffer) {
         while (true) {
-            try {
-                buffer.rLock().lock();  // 上读锁
-                final Segment segment = buffer.getCurrent();    // 获取 buffer 中当前使用的 segment
-                if (!buffer.isNextReady() && (segment.getIdle() < 0.9 * segment.getStep()) && buffer.getThreadRunning().compareAndSet(false, true)) {
-                    service.execute(new Runnable() {    // 执行到这里说明，另外一个 segment 未准备就绪，而且当前 segment 已经使用了 10 %，并且线程状态从 false 修改为了 true（cas 保证只有一个线程能执行到这里）
-                        @Override
-                        public void run() {
-                            Segment next = buffer.getSegments()[buffer.nextPos()];  // 获取下一个 segment，因为当前 segment 已经使用超过 10%，提前缓存另一个 segment 的 id
-                            boolean updateOk = false;
-                            try {
-                                updateSegmentFromDb(buffer.getKey(), next); // 如果 buffer 是未初始化态或者时间戳为 0，那么就从数据库中查询数据来对 segment 完成初始化
-                                updateOk = true;
-                                logger.info("update segment {} from db {}", buffer.getKey(), next);
-                            } catch (Exception e) {
-                                logger.warn(buffer.getKey() + " updateSegmentFromDb exception", e);
-                            } finally {
-                                if (updateOk) {     // 如果 segment 更新成功
-                                    buffer.wLock().lock();  // 上写锁
-                                    buffer.setNextReady(true);  // 更新 segment 就绪的状态
-                                    buffer.getThreadRunning().set(false);   // 设置线程的运行状态为 false
-                                    buffer.wLock().unlock();    // 释放写锁
-                                } else {
-                                    buffer.getThreadRunning().set(false);   // 否则仅仅是设置线程的状态为 false
-                                }
-                            }
-                        }
-                    });
-                }   // 从当前的 segment 中获取 id
-                long value = segment.getValue().getAndIncrement();
-                if (value < segment.getMax()) { // 健壮性，获得的 id 不会超过当前 segment 的最大值
-                    return new Result(value, Status.SUCCESS);   // 返回结果
-                }
-            } finally {
-                buffer.rLock().unlock();    // 释放读锁
+            final Segment segment = buffer.getCurrent();    // 获取 buffer 中当前使用的 segment，不需要加锁
+            loadNextSegmentIfNecessary(buffer, segment);    // 当前 segment 即将被用完时，异步装载另外一个 segment
+            long value = segment.getValue().getAndIncrement();  // 从当前的 segment 中获取 id
+            if (value < segment.getMax()) { // 健壮性，获得的 id 不会超过当前 segment 的最大值
+                sampleConsumption(buffer, segment, value, 1);
+                checkpoint(buffer, segment, value + 1);
+                return value;   // 返回结果
             }   // 执行到这里，说明 segment 的 value 已经超过 segment 的最大值了
-            waitAndSleep(buffer);   // 在更新另外一个 segment 的线程执行的情况下，自旋 + 睡眠 10 ms 后退出
-            try {
-                buffer.wLock().lock();  // 此时上写锁（如果有线程进出了写锁，它将会进入阻塞状态）
-                final Segment segment = buffer.getCurrent();    // 拿到当前 segment
-                long value = segment.getValue().getAndIncrement();
-                if (value < segment.getMax()) { // 再一次尝试，看 segment 的 value 是否小于最大值
-                    return new Result(value, Status.SUCCESS);   // 成立的情况下，返回获得的值
+            waitForNextSegment(buffer, segment);    // 在更新另外一个 segment 的线程执行的情况下，挂起等待装载完成
+            if (!buffer.switchFrom(segment)) {  // 通过 cas 切换到另外一个 segment，切换成功（或者已被其他线程切换）后重试
+                // 如果从当前 segment 获取失败，等待很久另外一个 segment 也没能就绪，就直接返回错误状态了（是两个 segment 都失效的情况）
+                logger.error("Both two segments in {} are not ready!", buffer);
+                return EXCEPTION_ID_TWO_SEGMENTS_ARE_NULL;
+            }
+        }
+    }
+    // 条带模式下每个线程先从 segment 中划出 chunkSize 个 id，之后在本地取号，不再竞争 segment 的 value，
+    // 代价是不同线程拿到的 id 之间不再保证单调递增
+    public Result getIdFromStripe(final SegmentBuffer buffer, final int chunkSize) {
+        return Result.of(nextIdFromStripe(buffer, chunkSize));
+    }
+
+    private long nextIdFromStripe(final SegmentBuffer buffer, final int chunkSize) {
+        Stripe stripe = buffer.getStripe();
+        if (!stripe.hasNext()) {
+            while (true) {
+                final Segment segment = buffer.getCurrent();
+                loadNextSegmentIfNecessary(buffer, segment);
+                long value = segment.getValue().getAndAdd(chunkSize);
+                if (value < segment.getMax()) { // segment 尾部不足 chunkSize 时只划出剩下的部分
+                    sampleConsumption(buffer, segment, value, chunkSize);
+                    checkpoint(buffer, segment, Math.min(value + chunkSize, segment.getMax()));
+                    stripe.reset(value, Math.min(value + chunkSize, segment.getMax()));
+                    break;
                 }
-                if (buffer.isNextReady()) { // 否则，如果下一个 segment 准备就绪
-                    buffer.switchPos(); // 切换到另外一个 segment
-                    buffer.setNextReady(false); // 更新下一个 segment 就绪状态的标志
-                } else {    // 如果从当前 segment 获取失败，等待很久另外一个 segment 也没能就绪，就直接返回错误状态了（是两个 segment 都失效的情况）
+                waitForNextSegment(buffer, segment);
+                if (!buffer.switchFrom(segment)) {
                     logger.error("Both two segments in {} are not ready!", buffer);
-                    return new Result(EXCEPTION_ID_TWO_SEGMENTS_ARE_NULL, Status.EXCEPTION);
+                    return EXCEPTION_ID_TWO_SEGMENTS_ARE_NULL;
                 }
-            } finally {
-                buffer.wLock().unlock();    // 最终释放写锁
             }
         }
+        return stripe.next();
     }
-    // 在更新另外一个 segment 的线程执行的情况下，自旋 + 睡眠 10 ms 后退出
-    private void waitAndSleep(SegmentBuffer buffer) {
-        int roll = 0;
-        while (buffer.getThreadRunning().get()) {   // 如果另外一个线程的状态是正在执行
-            roll += 1;  // 自旋计数
-            if(roll > 10000) {
-                try {
-                    Thread.currentThread().sleep(10);   // 自旋 10000 次，睡眠 10 ms 后退出
-                    break;
-                } catch (InterruptedException e) {
-                    logger.warn("Thread {} Interrupted",Thread.currentThread().getName());
-                    break;
+    // 通过一次 getAndAdd 从当前 segment 中划出一段连续的 id，当前 segment 不够时切换到另外一个 segment 继续划取
+    public BatchResult getIdsFromSegmentBuffer(final SegmentBuffer buffer, final int count) {
+        List<IdRange> ranges = new ArrayList<IdRange>(2);
+        int remaining = count;  // 还需要获取的 id 个数
+        while (true) {
+            final Segment segment = buffer.getCurrent();
+            loadNextSegmentIfNecessary(buffer, segment);
+            remaining -= takeFromSegment(buffer, segment, remaining, ranges);
+            if (remaining == 0) {
+                return new BatchResult(ranges);
+            }   // 执行到这里，说明当前 segment 已经被用完了，需要切换到另外一个 segment
+            waitForNextSegment(buffer, segment);
+            if (!buffer.switchFrom(segment)) {  // 已经划出的 id 直接丢弃，号段模式允许 id 不连续
+                logger.error("Both two segments in {} are not ready!", buffer);
+                return new BatchResult(EXCEPTION_ID_TWO_SEGMENTS_ARE_NULL, Status.EXCEPTION);
+            }
+        }
+    }
+    // 从 segment 中划出至多 count 个 id 追加到 ranges，返回实际划出的个数，value 越过 max 后 segment 即被用完
+    private int takeFromSegment(SegmentBuffer buffer, Segment segment, int count, List<IdRange> ranges) {
+        long value = segment.getValue().getAndAdd(count);
+        long max = segment.getMax();
+        if (value >= max) {
+            return 0;
+        }
+        sampleConsumption(buffer, segment, value, count);
+        int taken = (int) Math.min(count, max - value);
+        checkpoint(buffer, segment, value + taken);
+        IdRange last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && last.getStart() + last.getCount() == value) {   // 两个 segment 首尾相接时合并成一个区间
+            ranges.set(ranges.size() - 1, new IdRange(last.getStart(), last.getCount() + taken));
+        } else {
+            ranges.add(new IdRange(value, taken));
+        }
+        return taken;
+    }
+    // 另外一个 segment 未准备就绪，而且当前 segment 即将被用完，并且线程状态从 false 修改为了 true（cas 保证只有一个线程能执行到这里）时，异步装载另外一个 segment
+    // 环中已就绪的 segment 不足 ringDepth - 1 个时，异步装载 segment 直到填满环；
+    // 只剩当前 segment 时仍然按照剩余 id 数判断是否开始装载，threadRunning 保证同一个 buffer 同时只有一个装载任务
+    private void loadNextSegmentIfNecessary(final SegmentBuffer buffer, Segment segment) {
+        if (buffer.needsFill() && (buffer.getReadyCount() > 0 || segment.getIdle() < prefetchThreshold(buffer, segment))
+                && buffer.getThreadRunning().compareAndSet(false, true)) {
+            submitLoad(buffer);
+        }
+    }
+    // 每个任务只装载一个 segment，环还没填满时重新排队，避免一个 tag 长时间占用装载线程；
+    // dao 支持异步（合并更新）时任务只负责提交，segment 在回调中装入环，装载线程不用等待合并窗口
+    private void submitLoad(final SegmentBuffer buffer) {
+        final SegmentLoader loader = this.loader;
+        boolean submitted = loader.submit(new SegmentLoader.LoadTask(exhaustionDeadline(buffer)) {
+            @Override
+            public void run() {
+                final Segment next = new Segment(buffer);   // 构建新的 segment，因为当前 segment 即将被用完，提前缓存后续 segment 的 id
+                final LeafAlloc temp = nextRequest(buffer.getKey(), buffer);
+                allocate(temp, getDeadline(), new AsyncIDAllocDao.Callback() {    // 合并更新时仍然按 buffer 预计用完的时间先后执行
+                    @Override
+                    public void onSuccess(LeafAlloc leafAlloc, long costNanos) {
+                        if (leafAlloc == null) {    // tag 已经从 DB 中删除，全量模式等待同步线程移除 buffer，懒加载模式没有同步线程，直接移除并记为不存在
+                            logger.warn("leafkey {} not exists in db, skip loading", buffer.getKey());
+                            if (lazyLoad) {
+                                missingTags.put(buffer.getKey(), System.currentTimeMillis() + missingTagTtl);
+                                cache.remove(buffer.getKey(), buffer);
+                            }
+                            finishLoad(buffer, false);
+                            return;
+                        }
+                        boolean again = false;
+                        try {
+                            applyLeafAlloc(next, temp, leafAlloc);
+                            double millis = costNanos / 1000000.0;
+                            buffer.recordLoadLatency(millis);   // 只记录访问 DB 的耗时，合并窗口的等待不计入预加载的阈值
+                            loader.recordLatency(millis);
+                            buffer.append(next);    // 装载完成后才发布，追加到环的末尾
+                            logger.info("update segment {} from db {}", buffer.getKey(), next);
+                            buffer.setLoadFailures(0);
+                            dropStaleReserve(buffer, next);
+                            claimReserveIfNecessary(buffer);    // DB 可用时补齐应急号段
+                            again = buffer.needsFill();
+                        } catch (Exception e) {
+                            logger.warn(buffer.getKey() + " updateSegmentFromDb exception", e);
+                            useReserveIfNecessary(buffer);
+                        } finally {
+                            finishLoad(buffer, again);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(RuntimeException e) {
+                        logger.warn(buffer.getKey() + " updateSegmentFromDb exception", e);
+                        useReserveIfNecessary(buffer);
+                        finishLoad(buffer, false);
+                    }
+                });
+            }
+        });
+        if (!submitted) {   // 装载队列已满，放弃这次装载，等待中的线程直接返回失败，而不是堆积更多的线程和连接
+            logger.warn("segment loader queue is full, skip loading {}", buffer.getKey());
+            buffer.getThreadRunning().set(false);
+            buffer.signalWaiters();
+        }
+    }
+
+    private void finishLoad(SegmentBuffer buffer, boolean again) {
+        if (again) {
+            buffer.signalWaiters(); // 每装载好一个 segment 就唤醒等待的线程，不必等整个环填满
+            submitLoad(buffer);
+        } else {
+            buffer.getThreadRunning().set(false);   // 设置线程的运行状态为 false
+            buffer.signalWaiters(); // 唤醒等待下一个 segment 的线程
+        }
+    }
+    // 热点 tag（已经采样到消耗速率）额外从 DB 划出一段按当前速率能用 reserveMinutes 分钟的号段，只放在内存中不参与取号，
+    // 大小不超过 tag 的最大步长，不影响 buffer 的步长；应急号段不写本地日志，没有用到的部分在重启或者 buffer 被淘汰时直接丢弃。
+    // 应急号段落后最新装载的 segment 超过一个步长时会被丢弃重新划取，切换过去时 id 的回退不超过一个步长加上应急号段的大小。
+    // 划取失败不影响正常的装载。和装载一样通过 allocate 提交，异步 dao 下不会在合并线程中同步等待自己
+    private void claimReserveIfNecessary(final SegmentBuffer buffer) {
+        double rate = buffer.getConsumeRate();
+        if (reserveMinutes <= 0 || buffer.getReserve() != null || rate <= 0) {
+            return;
+        }
+        double size = Math.ceil(rate * TimeUnit.MINUTES.toMillis(reserveMinutes));
+        final int step = (int) Math.min(Math.max(size, buffer.getMinStep()), buffer.getMaxStep());
+        LeafAlloc temp = new LeafAlloc();
+        temp.setKey(buffer.getKey());
+        temp.setStep(step);
+        allocate(temp, Long.MAX_VALUE, new AsyncIDAllocDao.Callback() {  // 应急号段不急用，排在所有装载之后
+            @Override
+            public void onSuccess(LeafAlloc leafAlloc, long costNanos) {
+                if (leafAlloc == null) {
+                    return;
                 }
+                Segment reserve = new Segment(buffer);
+                reserve.getValue().set(leafAlloc.getMaxId() - step);
+                reserve.setMax(leafAlloc.getMaxId());
+                reserve.setStep(step);
+                buffer.setReserve(reserve);
+                logger.info("claim reserve segment {} {}", buffer.getKey(), reserve);
             }
+
+            @Override
+            public void onFailure(RuntimeException e) {
+                logger.warn(buffer.getKey() + " claim reserve exception", e);
+            }
+        });
+    }
+    // 应急号段的 max 比最新装载的 segment 的起点还小一个步长以上时丢弃，避免 DB 故障时切换过去 id 大幅回退，代价是丢弃的 id 被浪费
+    private void dropStaleReserve(SegmentBuffer buffer, Segment latest) {
+        Segment reserve = buffer.getReserve();
+        if (reserve != null && reserve.getMax() < latest.getMax() - latest.getStep() - buffer.getStep()) {
+            buffer.setReserve(null);
+            logger.info("drop stale reserve segment {} {}", buffer.getKey(), reserve);
+        }
+    }
+    // 连续 reserveAfterFailures 次装载失败时认为 DB 不可用，把应急号段追加到环中，取号线程用完当前 segment 后自然切换过去
+    private void useReserveIfNecessary(SegmentBuffer buffer) {
+        int failures = buffer.getLoadFailures() + 1;
+        buffer.setLoadFailures(failures);
+        Segment reserve = buffer.getReserve();
+        if (reserve != null && failures >= reserveAfterFailures) {
+            buffer.setReserve(null);
+            buffer.append(reserve);
+            logger.error("{} failed to load segment {} times, switch to reserve segment {}", buffer.getKey(), failures, reserve);
+        }
+    }
+    // 按照消耗速率估计当前 segment 用完的时间，越早用完越先装载；已经用完的立即装载，没有采样数据的排在最后
+    private long exhaustionDeadline(SegmentBuffer buffer) {
+        long now = System.currentTimeMillis();
+        long idle = buffer.getCurrent().getIdle();
+        if (idle <= 0) {
+            return now;
+        }
+        double rate = buffer.getConsumeRate();
+        if (rate <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return now + (long) (idle / rate);
+    }
+    // 剩余 id 少于该值时开始装载下一个 segment：按消耗速率剩余 id 会在 prefetchSafety 倍的装载耗时内用完，
+    // 但不晚于 segment 用掉 90%，还没有采样数据时沿用用掉 10% 就开始装载的规则
+    private double prefetchThreshold(SegmentBuffer buffer, Segment segment) {
+        double rate = buffer.getConsumeRate();
+        double latency = buffer.getLoadLatency();
+        if (rate <= 0 || latency <= 0) {
+            return 0.9 * segment.getStep();
+        }
+        return Math.max(0.1 * segment.getStep(), rate * latency * prefetchSafety);
+    }
+    // 每划过 2^SAMPLE_SHIFT 个 id 采样一次消耗速率，避免每次取号都读取时钟
+    private void sampleConsumption(SegmentBuffer buffer, Segment segment, long value, int count) {
+        if ((value >>> SAMPLE_SHIFT) != ((value + count) >>> SAMPLE_SHIFT)) {
+            buffer.sampleConsumption(segment, value + count, System.nanoTime());
+        }
+    }
+    // 在更新另外一个 segment 的线程执行的情况下，挂起等待装载线程唤醒，最多等待 waitTimeout 毫秒
+    // segment 用完时下一个 segment 还没装载好，说明环的深度不足以覆盖流量突发，把环加深一层
+    private void waitForNextSegment(SegmentBuffer buffer, Segment segment) {
+        if (segment.getNext() != null) {
+            return;
+        }
+        int depth = buffer.getRingDepth();
+        if (buffer.growDepth(depth)) {
+            logger.info("grow ring depth of {} to {}", buffer.getKey(), depth + 1);
+        }
+        loadNextSegmentIfNecessary(buffer, segment);    // 一次批量取号就可能用完整个 segment，此时还没有开始装载的话立即开始
+        if (buffer.getThreadRunning().get()) {
+            buffer.awaitLoad(segment, TimeUnit.MILLISECONDS.toNanos(waitTimeout));
         }
     }
 
@@ -270,6 +893,136 @@ public class SegmentIDGenImpl implements IDGen {
         return cache;
     }
 
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    public boolean isTagsVersionEnabled() {
+        return tagsVersionEnabled;
+    }
+
+    public void setTagsVersionEnabled(boolean tagsVersionEnabled) {
+        this.tagsVersionEnabled = tagsVersionEnabled;
+    }
+
+    public boolean isLazyLoad() {
+        return lazyLoad;
+    }
+
+    public void setLazyLoad(boolean lazyLoad) {
+        this.lazyLoad = lazyLoad;
+    }
+
+    public long getIdleTtl() {
+        return idleTtl;
+    }
+
+    public void setIdleTtl(long idleTtl) {
+        this.idleTtl = idleTtl;
+    }
+
+    public int getMaxTags() {
+        return maxTags;
+    }
+
+    public void setMaxTags(int maxTags) {
+        this.maxTags = maxTags;
+    }
+
+    public long getMissingTagTtl() {
+        return missingTagTtl;
+    }
+
+    public void setMissingTagTtl(long missingTagTtl) {
+        this.missingTagTtl = missingTagTtl;
+    }
+
+    public int getWarmUpThreads() {
+        return warmUpThreads;
+    }
+
+    public void setWarmUpThreads(int warmUpThreads) {
+        this.warmUpThreads = warmUpThreads;
+    }
+
+    public Set<String> getWarmUpTags() {
+        return warmUpTags;
+    }
+
+    public void setWarmUpTags(Set<String> warmUpTags) {
+        this.warmUpTags = warmUpTags;
+    }
+
+    public long getReserveMinutes() {
+        return reserveMinutes;
+    }
+
+    public void setReserveMinutes(long reserveMinutes) {
+        this.reserveMinutes = reserveMinutes;
+    }
+
+    public int getReserveAfterFailures() {
+        return reserveAfterFailures;
+    }
+
+    public void setReserveAfterFailures(int reserveAfterFailures) {
+        this.reserveAfterFailures = reserveAfterFailures;
+    }
+
+    public SegmentJournal getJournal() {
+        return journal;
+    }
+
+    public void setJournal(SegmentJournal journal) {
+        this.journal = journal;
+    }
+
+    public SegmentLoader getLoader() {
+        return loader;
+    }
+    // 替换装载线程池，原来的线程池执行完已排队的任务后关闭
+    public void setLoader(SegmentLoader loader) {
+        SegmentLoader old = this.loader;
+        this.loader = loader;
+        old.shutdown();
+    }
+
+    public long getWaitTimeout() {
+        return waitTimeout;
+    }
+
+    public void setWaitTimeout(long waitTimeout) {
+        this.waitTimeout = waitTimeout;
+    }
+
+    public double getPrefetchSafety() {
+        return prefetchSafety;
+    }
+
+    public void setPrefetchSafety(double prefetchSafety) {
+        this.prefetchSafety = prefetchSafety;
+    }
+
+    public int getMaxStep() {
+        return maxStep;
+    }
+
+    public void setMaxStep(int maxStep) {
+        this.maxStep = maxStep;
+    }
+
+    public long getSegmentDuration() {
+        return segmentDuration;
+    }
+
+    public void setSegmentDuration(long segmentDuration) {
+        this.segmentDuration = segmentDuration;
+    }
+
     public IDAllocDao getDao() {
         return dao;
     }
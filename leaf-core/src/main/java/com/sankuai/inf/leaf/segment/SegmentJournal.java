@@ -0,0 +1,193 @@
+package com.sankuai.inf.leaf.segment;
+
+import com.sankuai.inf.leaf.segment.model.Segment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内存映射的本地日志，每个 tag 一个槽位，记录当前 segment 的 max 和租约上界 leased，重启后直接从 leased 开始使用剩下的 id。
+ * 发出的 id 超过 leased 之前先把新的租约写入槽位并 force 到磁盘，所以无论进程还是机器崩溃，日志中的 leased 都不会小于已经发出的 id；
+ * 租约按 segment 步长的 1/LEASE_FRACTION 推进，每个 segment 最多 force 这么多次，重启最多浪费一个租约的 id
+ */
+public class SegmentJournal {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentJournal.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long MAGIC = 0x4c4541464a524e4cL;  // "LEAFJRNL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    /**
+     * 槽位布局：max(8) leased(8) checksum(8) tag 长度(2) tag(最多 MAX_TAG_LENGTH 字节)
+     */
+    private static final int SLOT_SIZE = 192;
+    private static final int MAX_TAG_LENGTH = SLOT_SIZE - 26;
+    private static final int LEASE_FRACTION = 16;
+
+    private final File file;
+    private final int capacity;
+    private final RandomAccessFile raf;
+    private final FileLock lock;
+    private final MappedByteBuffer mapped;
+    private final Map<String, Integer> slots = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();  // 打开时读到的有效槽位
+    private int used;   // 已经分配的槽位数，在 this 上同步
+
+    public SegmentJournal(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.raf = new RandomAccessFile(file, "rw");
+        FileLock fileLock;
+        try {
+            fileLock = raf.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) { // 两个进程共用一个日志会重复使用同一段 id
+            raf.close();
+            throw new IOException("Segment journal " + file + " is locked by another process");
+        }
+        this.lock = fileLock;
+        long size = HEADER_SIZE + (long) SLOT_SIZE * capacity;
+        boolean valid = raf.length() == size;
+        raf.setLength(size);
+        this.mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (valid && mapped.getLong(0) == MAGIC && mapped.getInt(8) == VERSION && mapped.getInt(12) == capacity) {
+            load();
+        } else {    // 格式不符时丢弃原有内容，只会浪费 id，不会重复
+            logger.info("Reset segment journal {}", file);
+            for (int i = 0; i < size; i += 8) {
+                mapped.putLong(i, 0);
+            }
+            mapped.putLong(0, MAGIC);
+            mapped.putInt(8, VERSION);
+            mapped.putInt(12, capacity);
+            mapped.force();
+        }
+    }
+    // 校验和不对的槽位是写到一半时崩溃留下的，直接丢弃，对应的 tag 重启后从 DB 装载新的号段
+    private void load() {
+        for (int i = 0; i < capacity; i++) {
+            int offset = offset(i);
+            int length = mapped.getShort(offset + 24);
+            if (length <= 0 || length > MAX_TAG_LENGTH) {
+                break;
+            }
+            byte[] bytes = new byte[length];
+            for (int j = 0; j < length; j++) {
+                bytes[j] = mapped.get(offset + 26 + j);
+            }
+            String tag = new String(bytes, UTF8);
+            long max = mapped.getLong(offset);
+            long leased = mapped.getLong(offset + 8);
+            slots.put(tag, i);
+            if (mapped.getLong(offset + 16) == checksum(tag, max, leased)) {
+                entries.put(tag, new Entry(tag, max, leased));
+            } else {
+                logger.warn("Discard torn journal slot of {}", tag);
+            }
+            used = i + 1;
+        }
+        logger.info("Load {} tags from segment journal {}", entries.size(), file);
+    }
+    // 打开日志时每个 tag 记录的 segment 中还没有发出的部分 [leased, max)
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+    // 发出 [.., end) 之前调用，end 超过租约上界时先推进租约并 force，租约推进之前其他越过上界的线程在 segment 上等待
+    public void lease(String tag, Segment segment, long end) {
+        synchronized (segment) {
+            if (end <= segment.getLeased()) {
+                return;
+            }
+            long max = segment.getMax();
+            Integer slot = slotOf(tag);
+            if (slot == null) { // 槽位用完，这个 tag 不再记录，重启后从 DB 装载
+                segment.setLeased(max);
+                return;
+            }
+            long leased = Math.min(max, end + Math.max(segment.getStep() / LEASE_FRACTION, 1));
+            int offset = offset(slot);
+            mapped.putLong(offset, max);
+            mapped.putLong(offset + 8, leased);
+            mapped.putLong(offset + 16, checksum(tag, max, leased));
+            mapped.force();
+            segment.setLeased(leased);
+        }
+    }
+
+    private Integer slotOf(String tag) {
+        Integer slot = slots.get(tag);
+        if (slot != null) {
+            return slot;
+        }
+        byte[] bytes = tag.getBytes(UTF8);
+        synchronized (this) {
+            slot = slots.get(tag);
+            if (slot != null) {
+                return slot;
+            }
+            if (used >= capacity || bytes.length > MAX_TAG_LENGTH) {
+                logger.warn("No journal slot for {}, capacity {}", tag, capacity);
+                return null;
+            }
+            slot = used++;
+            int offset = offset(slot);
+            for (int j = 0; j < bytes.length; j++) {
+                mapped.put(offset + 26 + j, bytes[j]);
+            }
+            mapped.putShort(offset + 24, (short) bytes.length);
+            slots.put(tag, slot);
+            return slot;
+        }
+    }
+
+    public void close() throws IOException {
+        mapped.force();
+        lock.release();
+        raf.close();
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static long checksum(String tag, long max, long leased) {
+        return MAGIC ^ (max * 0x9E3779B97F4A7C15L) ^ (leased * 0xC2B2AE3D27D4EB4FL) ^ tag.hashCode();
+    }
+
+    public static class Entry {
+        private final String tag;
+        private final long max;
+        private final long leased;
+
+        Entry(String tag, long max, long leased) {
+            this.tag = tag;
+            this.max = max;
+            this.leased = leased;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getLeased() {
+            return leased;
+        }
+    }
+}
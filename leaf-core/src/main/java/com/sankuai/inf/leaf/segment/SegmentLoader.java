@@ -0,0 +1,121 @@
+package com.sankuai.inf.leaf.segment;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 装载 segment 的有界线程池，线程数固定，排队的任务按照 buffer 预计用完的时间先后执行，
+ * 队列满时直接拒绝，DB 变慢时不会无限制地创建线程占用连接池
+ */
+public class SegmentLoader {
+    /**
+     * 装载耗时直方图各个桶的上界，单位毫秒，最后一个桶统计超过 5000ms 的装载
+     */
+    private static final long[] LATENCY_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final Semaphore permits;    // 提交时获取，任务开始执行时释放，保证排队的任务不超过 queueCapacity
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+
+    public SegmentLoader(int threads, int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        this.permits = new Semaphore(queueCapacity);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new SegmentIDGenImpl.UpdateThreadFactory()) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                permits.release();
+            }
+        };
+    }
+    // 队列已满时返回 false，由调用方放弃这次装载，稍后的取号会再次触发；
+    // PriorityBlockingQueue 本身无界，容量由 permits 原子地控制，并发提交时不会超出
+    public boolean submit(LoadTask task) {
+        if (!permits.tryAcquire()) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {    // 已经 shutdown
+            permits.release();
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void recordLatency(double millis) {
+        int i = 0;
+        while (i < LATENCY_BUCKETS.length && millis > LATENCY_BUCKETS[i]) {
+            i++;
+        }
+        latencyHistogram.incrementAndGet(i);
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+    // 桶的上界 -> 落在该桶中的装载次数
+    public Map<String, Long> getLatencyHistogram() {
+        Map<String, Long> histogram = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            histogram.put("<=" + LATENCY_BUCKETS[i] + "ms", latencyHistogram.get(i));
+        }
+        histogram.put(">" + LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1] + "ms", latencyHistogram.get(LATENCY_BUCKETS.length));
+        return histogram;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 装载任务，deadline 越早（buffer 越快被用完）越先执行，相同时按提交顺序执行
+     */
+    public abstract static class LoadTask implements Runnable, Comparable<LoadTask> {
+        private final long deadline;
+        private final long seq = SEQUENCE.incrementAndGet();
+
+        public LoadTask(long deadline) {
+            this.deadline = deadline;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        @Override
+        public int compareTo(LoadTask o) {
+            if (deadline != o.deadline) {
+                return deadline < o.deadline ? -1 : 1;
+            }
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.sankuai.inf.leaf.segment.dao;
+
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+
+/**
+ * 可以异步更新号段的 dao，调用方提交后立即返回，不占用线程等待结果
+ */
+public interface AsyncIDAllocDao {
+     /**
+      * 更新 tag 的 max id，step 大于 0 时按该 step 更新，否则按 DB 中的 step 更新；回调在 dao 自己的线程中执行，不能阻塞，
+      * tag 不存在时 onSuccess 的 leafAlloc 为 null；排队的请求按 deadline（ms）从早到晚执行，队列已满时直接在调用线程中 onFailure
+      */
+     void updateMaxIdAsync(LeafAlloc leafAlloc, long deadline, Callback callback);
+
+     interface Callback {
+          /**
+           * @param costNanos 访问 DB 的耗时，不包括排队和合并窗口的等待
+           */
+          void onSuccess(LeafAlloc leafAlloc, long costNanos);
+
+          void onFailure(RuntimeException e);
+     }
+}
@@ -2,11 +2,29 @@ package com.sankuai.inf.leaf.segment.dao;
 
 import com.sankuai.inf.leaf.segment.model.LeafAlloc;
 
+import java.util.Date;
 import java.util.List;
 
 public interface IDAllocDao {
      List<LeafAlloc> getAllLeafAllocs();
      LeafAlloc updateMaxIdAndGetLeafAlloc(String tag);
      LeafAlloc updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc leafAlloc);
+     /**
+      * 在一个事务中更新多个 tag 的 max id 并查出更新后的结果，step 大于 0 时按该 step 更新，否则按 DB 中的 step 更新，
+      * leafAllocs 中的 key 不能重复，返回结果的顺序不保证和参数一致
+      */
+     List<LeafAlloc> updateMaxIdAndGetLeafAllocs(List<LeafAlloc> leafAllocs);
      List<String> getAllTags();
+     /**
+      * create_time 不早于 since 的 tag，只有新增的 tag 会被查出来，分配号段不会改变 create_time
+      */
+     List<String> getTagsCreatedSince(Date since);
+     /**
+      * DB 的当前时间，作为增量同步的水位，避免和 DB 之间的时钟偏差
+      */
+     Date getCurrentTime();
+     /**
+      * leaf_alloc_tags_version 表中的版本号，leaf_alloc 增删 tag 时由触发器递增
+      */
+     long getTagsVersion();
 }
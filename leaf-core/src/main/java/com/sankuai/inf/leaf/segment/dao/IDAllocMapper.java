@@ -3,24 +3,33 @@ package com.sankuai.inf.leaf.segment.dao;
 import com.sankuai.inf.leaf.segment.model.LeafAlloc;
 import org.apache.ibatis.annotations.*;
 
+import java.util.Date;
 import java.util.List;
 
 public interface IDAllocMapper {
 
-    @Select("SELECT biz_tag, max_id, step, update_time FROM leaf_alloc")
+    @Select("SELECT biz_tag, max_id, step, chunk_size, ring_depth, min_step, max_step, update_time FROM leaf_alloc")
     @Results(value = {
             @Result(column = "biz_tag", property = "key"),
             @Result(column = "max_id", property = "maxId"),
             @Result(column = "step", property = "step"),
+            @Result(column = "chunk_size", property = "chunkSize"),
+            @Result(column = "ring_depth", property = "ringDepth"),
+            @Result(column = "min_step", property = "minStep"),
+            @Result(column = "max_step", property = "maxStep"),
             @Result(column = "update_time", property = "updateTime")
     })
     List<LeafAlloc> getAllLeafAllocs();
 
-    @Select("SELECT biz_tag, max_id, step FROM leaf_alloc WHERE biz_tag = #{tag}")
+    @Select("SELECT biz_tag, max_id, step, chunk_size, ring_depth, min_step, max_step FROM leaf_alloc WHERE biz_tag = #{tag}")
     @Results(value = {
             @Result(column = "biz_tag", property = "key"),
             @Result(column = "max_id", property = "maxId"),
-            @Result(column = "step", property = "step")
+            @Result(column = "step", property = "step"),
+            @Result(column = "chunk_size", property = "chunkSize"),
+            @Result(column = "ring_depth", property = "ringDepth"),
+            @Result(column = "min_step", property = "minStep"),
+            @Result(column = "max_step", property = "maxStep")
     })
     LeafAlloc getLeafAlloc(@Param("tag") String tag);
 
@@ -30,6 +39,77 @@ public interface IDAllocMapper {
     @Update("UPDATE leaf_alloc SET max_id = max_id + #{step} WHERE biz_tag = #{key}")
     void updateMaxIdByCustomStep(@Param("leafAlloc") LeafAlloc leafAlloc);
 
+    @Update("<script>UPDATE leaf_alloc SET max_id = max_id + CASE biz_tag "
+            + "<foreach collection='list' item='item' separator=' '>WHEN #{item.key} THEN "
+            + "<choose><when test='item.step > 0'>#{item.step}</when><otherwise>step</otherwise></choose></foreach> END "
+            + "WHERE biz_tag IN <foreach collection='list' item='item' open='(' separator=',' close=')'>#{item.key}</foreach></script>")
+    void updateMaxIds(List<LeafAlloc> leafAllocs);
+
+    @Select("<script>SELECT biz_tag, max_id, step, chunk_size, ring_depth, min_step, max_step FROM leaf_alloc WHERE biz_tag IN "
+            + "<foreach collection='list' item='tag' open='(' separator=',' close=')'>#{tag}</foreach></script>")
+    @Results(value = {
+            @Result(column = "biz_tag", property = "key"),
+            @Result(column = "max_id", property = "maxId"),
+            @Result(column = "step", property = "step"),
+            @Result(column = "chunk_size", property = "chunkSize"),
+            @Result(column = "ring_depth", property = "ringDepth"),
+            @Result(column = "min_step", property = "minStep"),
+            @Result(column = "max_step", property = "maxStep")
+    })
+    List<LeafAlloc> getLeafAllocs(List<String> tags);
+
+    @Update("UPDATE leaf_alloc SET max_id = LAST_INSERT_ID(max_id + step), step = (@leaf_step := step) WHERE biz_tag = #{key}")
+    @Options(useGeneratedKeys = true, keyProperty = "maxId")
+    int updateMaxIdByStoredStepLastInsertId(LeafAlloc leafAlloc);
+
+    @Update("UPDATE leaf_alloc SET max_id = LAST_INSERT_ID(max_id + #{step}), step = (@leaf_step := step) WHERE biz_tag = #{key}")
+    @Options(useGeneratedKeys = true, keyProperty = "maxId")
+    int updateMaxIdByLastInsertId(LeafAlloc leafAlloc);
+
+    @Select("SELECT biz_tag, chunk_size, ring_depth, min_step, max_step, @leaf_step AS step FROM leaf_alloc WHERE biz_tag = #{tag}")
+    @Results(value = {
+            @Result(column = "biz_tag", property = "key"),
+            @Result(column = "step", property = "step"),
+            @Result(column = "chunk_size", property = "chunkSize"),
+            @Result(column = "ring_depth", property = "ringDepth"),
+            @Result(column = "min_step", property = "minStep"),
+            @Result(column = "max_step", property = "maxStep")
+    })
+    LeafAlloc getLeafAllocWithUpdatedStep(@Param("tag") String tag);
+
+    @Select("UPDATE leaf_alloc SET max_id = max_id + step WHERE biz_tag = #{tag} RETURNING biz_tag, max_id, step, chunk_size, ring_depth, min_step, max_step")
+    @Results(value = {
+            @Result(column = "biz_tag", property = "key"),
+            @Result(column = "max_id", property = "maxId"),
+            @Result(column = "step", property = "step"),
+            @Result(column = "chunk_size", property = "chunkSize"),
+            @Result(column = "ring_depth", property = "ringDepth"),
+            @Result(column = "min_step", property = "minStep"),
+            @Result(column = "max_step", property = "maxStep")
+    })
+    LeafAlloc updateMaxIdReturning(@Param("tag") String tag);
+
+    @Select("UPDATE leaf_alloc SET max_id = max_id + #{step} WHERE biz_tag = #{key} RETURNING biz_tag, max_id, step, chunk_size, ring_depth, min_step, max_step")
+    @Results(value = {
+            @Result(column = "biz_tag", property = "key"),
+            @Result(column = "max_id", property = "maxId"),
+            @Result(column = "step", property = "step"),
+            @Result(column = "chunk_size", property = "chunkSize"),
+            @Result(column = "ring_depth", property = "ringDepth"),
+            @Result(column = "min_step", property = "minStep"),
+            @Result(column = "max_step", property = "maxStep")
+    })
+    LeafAlloc updateMaxIdByCustomStepReturning(LeafAlloc leafAlloc);
+
     @Select("SELECT biz_tag FROM leaf_alloc")
     List<String> getAllTags();
+
+    @Select("SELECT biz_tag FROM leaf_alloc WHERE create_time >= #{since}")
+    List<String> getTagsCreatedSince(@Param("since") Date since);
+
+    @Select("SELECT CURRENT_TIMESTAMP")
+    Date getCurrentTime();
+
+    @Select("SELECT version FROM leaf_alloc_tags_version WHERE id = 1")
+    Long getTagsVersion();
 }
@@ -0,0 +1,258 @@
+package com.sankuai.inf.leaf.segment.dao.impl;
+
+import com.sankuai.inf.leaf.segment.dao.AsyncIDAllocDao;
+import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把 windowMillis 内来自不同 SegmentBuffer 的号段更新请求合并成一次 updateMaxIdAndGetLeafAllocs，
+ * tag 很多时（比如重启后）大幅减少 DB 往返次数。同步接口的调用线程阻塞到所在批次完成为止；
+ * 异步接口不占用调用线程，SegmentLoader 通过它提交装载，一批能合并的 tag 数不受装载线程数的限制。
+ * 排队的请求按 deadline 从早到晚进入批次，和 SegmentLoader 的顺序一致；队列有界，满了之后异步请求直接失败，同步请求阻塞等待
+ */
+public class CoalescingIDAllocDao implements IDAllocDao, AsyncIDAllocDao {
+    private static final Logger logger = LoggerFactory.getLogger(CoalescingIDAllocDao.class);
+    /**
+     * 一批最多合并的 tag 个数，避免 SQL 过长
+     */
+    private static final int MAX_BATCH_SIZE = 500;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final IDAllocDao dao;   // 实际访问 DB 的 dao
+    private final long windowMillis;
+    private final BlockingQueue<Request> queue = new PriorityBlockingQueue<Request>();
+    private final Semaphore permits;    // 放入队列前获取，合并线程取出时释放，保证排队的请求不超过 queueCapacity
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public CoalescingIDAllocDao(IDAllocDao dao, long windowMillis) {
+        this(dao, windowMillis, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public CoalescingIDAllocDao(IDAllocDao dao, long windowMillis, int queueCapacity) {
+        this.dao = dao;
+        this.windowMillis = windowMillis;
+        this.permits = new Semaphore(queueCapacity);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                coalesce();
+            }
+        }, "Thread-Segment-Coalesce");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public List<LeafAlloc> getAllLeafAllocs() {
+        return dao.getAllLeafAllocs();
+    }
+
+    @Override   // step 为 0 表示按 DB 中的 step 更新
+    public LeafAlloc updateMaxIdAndGetLeafAlloc(String tag) {
+        return submit(tag, 0);
+    }
+
+    @Override
+    public LeafAlloc updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc leafAlloc) {
+        return submit(leafAlloc.getKey(), leafAlloc.getStep());
+    }
+
+    @Override   // 回调在合并线程中执行，队列已满时在调用线程中直接失败
+    public void updateMaxIdAsync(LeafAlloc leafAlloc, long deadline, Callback callback) {
+        if (!permits.tryAcquire()) {
+            rejectedCount.incrementAndGet();
+            callback.onFailure(new IllegalStateException("coalescing queue is full, reject " + leafAlloc.getKey()));
+            return;
+        }
+        queue.add(new Request(leafAlloc.getKey(), leafAlloc.getStep(), deadline, callback));
+    }
+
+    @Override
+    public List<LeafAlloc> updateMaxIdAndGetLeafAllocs(List<LeafAlloc> leafAllocs) {
+        return dao.updateMaxIdAndGetLeafAllocs(leafAllocs);
+    }
+
+    @Override
+    public List<String> getAllTags() {
+        return dao.getAllTags();
+    }
+
+    @Override
+    public List<String> getTagsCreatedSince(Date since) {
+        return dao.getTagsCreatedSince(since);
+    }
+
+    @Override
+    public Date getCurrentTime() {
+        return dao.getCurrentTime();
+    }
+
+    @Override
+    public long getTagsVersion() {
+        return dao.getTagsVersion();
+    }
+    // 放入队列后等待合并线程执行完所在的批次；调用方已经在等待，deadline 取当前时间，队列满时阻塞到有空位
+    private LeafAlloc submit(String tag, int step) {
+        Waiter waiter = new Waiter();
+        try {
+            permits.acquire();
+            queue.add(new Request(tag, step, System.currentTimeMillis(), waiter));
+            waiter.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + tag, e);
+        }
+        if (waiter.error != null) {
+            throw waiter.error;
+        }
+        return waiter.result;
+    }
+    // 取到第一个请求后再等待 windowMillis 收集同一批的请求，同一个 tag 在一批中只能出现一次，重复的留到下一批
+    private void coalesce() {
+        List<Request> deferred = new ArrayList<Request>();
+        while (true) {
+            List<Request> pending = deferred;
+            deferred = new ArrayList<Request>();
+            List<Request> batch = new ArrayList<Request>();
+            Set<String> tags = new HashSet<String>();
+            for (Request request : pending) {
+                addOrDefer(request, batch, tags, deferred);
+            }
+            try {
+                if (batch.isEmpty()) {
+                    addOrDefer(take(), batch, tags, deferred);
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    Request request = poll(deadline - System.nanoTime());
+                    if (request == null) {
+                        break;
+                    }
+                    addOrDefer(request, batch, tags, deferred);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            execute(batch);
+        }
+    }
+
+    private Request take() throws InterruptedException {
+        Request request = queue.take();
+        permits.release();
+        return request;
+    }
+
+    private Request poll(long timeoutNanos) throws InterruptedException {
+        Request request = queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        if (request != null) {
+            permits.release();
+        }
+        return request;
+    }
+
+    private void addOrDefer(Request request, List<Request> batch, Set<String> tags, List<Request> deferred) {
+        if (batch.size() < MAX_BATCH_SIZE && tags.add(request.tag)) {
+            batch.add(request);
+        } else {
+            deferred.add(request);
+        }
+    }
+
+    private void execute(List<Request> batch) {
+        List<LeafAlloc> leafAllocs = new ArrayList<LeafAlloc>(batch.size());
+        for (Request request : batch) {
+            LeafAlloc leafAlloc = new LeafAlloc();
+            leafAlloc.setKey(request.tag);
+            leafAlloc.setStep(request.step);
+            leafAllocs.add(leafAlloc);
+        }
+        Map<String, LeafAlloc> results = new HashMap<String, LeafAlloc>();
+        RuntimeException error = null;
+        long start = System.nanoTime();
+        try {
+            for (LeafAlloc leafAlloc : dao.updateMaxIdAndGetLeafAllocs(leafAllocs)) {
+                results.put(leafAlloc.getKey(), leafAlloc);
+            }
+            logger.debug("coalesced {} segment updates", batch.size());
+        } catch (RuntimeException e) {
+            logger.warn("coalesced segment update of {} tags failed", batch.size(), e);
+            error = e;
+        }
+        long costNanos = System.nanoTime() - start;
+        for (Request request : batch) {
+            try {
+                if (error != null) {
+                    request.callback.onFailure(error);
+                } else {
+                    request.callback.onSuccess(results.get(request.tag), costNanos);  // tag 已被删除时为 null，和单独更新时一致
+                }
+            } catch (RuntimeException e) {  // 回调的异常不能让合并线程退出
+                logger.warn("segment update callback of {} failed", request.tag, e);
+            }
+        }
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+    // deadline 越早越先合并，相同时按提交顺序
+    private static class Request implements Comparable<Request> {
+        private final String tag;
+        private final int step;
+        private final long deadline;
+        private final long seq = SEQUENCE.incrementAndGet();
+        private final Callback callback;
+
+        Request(String tag, int step, long deadline, Callback callback) {
+            this.tag = tag;
+            this.step = step;
+            this.deadline = deadline;
+            this.callback = callback;
+        }
+
+        @Override
+        public int compareTo(Request o) {
+            if (deadline != o.deadline) {
+                return deadline < o.deadline ? -1 : 1;
+            }
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+    // 同步接口的调用线程在 done 上等待
+    private static class Waiter implements Callback {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private LeafAlloc result;   // 由 done 保证可见性
+        private RuntimeException error;
+
+        @Override
+        public void onSuccess(LeafAlloc leafAlloc, long costNanos) {
+            result = leafAlloc;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(RuntimeException e) {
+            error = e;
+            done.countDown();
+        }
+    }
+}
@@ -12,6 +12,8 @@ import org.apache.ibatis.transaction.TransactionFactory;
 import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
 
 import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 public class IDAllocDaoImpl implements IDAllocDao {
@@ -64,6 +66,24 @@ public class IDAllocDaoImpl implements IDAllocDao {
         }
     }
 
+    @Override   // 一条 UPDATE 更新多个 tag 的 max id，再一条 SELECT 查出结果，整批只需要三次往返
+    public List<LeafAlloc> updateMaxIdAndGetLeafAllocs(List<LeafAlloc> leafAllocs) {
+        List<String> tags = new ArrayList<String>(leafAllocs.size());
+        for (LeafAlloc leafAlloc : leafAllocs) {
+            tags.add(leafAlloc.getKey());
+        }
+        SqlSession sqlSession = sqlSessionFactory.openSession();
+        try {   // 执行的是 UPDATE leaf_alloc SET max_id = max_id + CASE biz_tag WHEN ... END WHERE biz_tag IN (...)，行锁按主键顺序获取
+            sqlSession.update("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.updateMaxIds", leafAllocs);
+            // 执行的是 SELECT biz_tag, max_id, step, ... FROM leaf_alloc WHERE biz_tag IN (...)
+            List<LeafAlloc> result = sqlSession.selectList("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.getLeafAllocs", tags);
+            sqlSession.commit();
+            return result;
+        } finally {
+            sqlSession.close();
+        }
+    }
+
     @Override   // 从数据库中查询所有的 biz_tag 字段的值
     public List<String> getAllTags() {
         SqlSession sqlSession = sqlSessionFactory.openSession(false);
@@ -73,4 +93,35 @@ public class IDAllocDaoImpl implements IDAllocDao {
             sqlSession.close();
         }
     }
+
+    @Override   // 从数据库中查询 create_time 不早于 since 的 biz_tag
+    public List<String> getTagsCreatedSince(Date since) {
+        SqlSession sqlSession = sqlSessionFactory.openSession(false);
+        try {   // 执行的是 SELECT biz_tag FROM leaf_alloc WHERE create_time >= #{since}
+            return sqlSession.selectList("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.getTagsCreatedSince", since);
+        } finally {
+            sqlSession.close();
+        }
+    }
+
+    @Override
+    public Date getCurrentTime() {
+        SqlSession sqlSession = sqlSessionFactory.openSession(false);
+        try {   // 执行的是 SELECT CURRENT_TIMESTAMP
+            return sqlSession.selectOne("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.getCurrentTime");
+        } finally {
+            sqlSession.close();
+        }
+    }
+
+    @Override   // 版本表中没有记录时返回 0
+    public long getTagsVersion() {
+        SqlSession sqlSession = sqlSessionFactory.openSession(false);
+        try {   // 执行的是 SELECT version FROM leaf_alloc_tags_version WHERE id = 1
+            Long version = sqlSession.selectOne("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.getTagsVersion");
+            return version == null ? 0 : version;
+        } finally {
+            sqlSession.close();
+        }
+    }
 }
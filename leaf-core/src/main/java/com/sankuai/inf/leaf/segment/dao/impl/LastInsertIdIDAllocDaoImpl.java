@@ -0,0 +1,48 @@
+package com.sankuai.inf.leaf.segment.dao.impl;
+
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import org.apache.ibatis.session.SqlSession;
+
+import javax.sql.DataSource;
+
+/**
+ * MySQL 下通过 max_id = LAST_INSERT_ID(max_id + step) 在一条自动提交的 UPDATE 中分配号段：step 取自行中存储的值，
+ * 驱动从 UPDATE 的响应包中直接返回新的 max_id，同一条语句把本次使用的 step 记到会话变量 @leaf_step 中，不需要 SELECT ... FOR UPDATE 和 COMMIT，
+ * 行锁只在这一次往返中持有。之后在同一个会话中读取 tag 的其余配置和 @leaf_step，这次读取不加锁，step 也不会因为期间被修改而和 max_id 对不上
+ */
+public class LastInsertIdIDAllocDaoImpl extends IDAllocDaoImpl {
+
+    public LastInsertIdIDAllocDaoImpl(DataSource dataSource) {
+        super(dataSource);
+    }
+
+    @Override   // 执行的是 UPDATE leaf_alloc SET max_id = LAST_INSERT_ID(max_id + step), step = (@leaf_step := step) WHERE biz_tag = #{key}
+    public LeafAlloc updateMaxIdAndGetLeafAlloc(String tag) {
+        return updateMaxId("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.updateMaxIdByStoredStepLastInsertId", tag, 0);
+    }
+
+    @Override   // 返回的 step 仍然是 DB 中的 step，和 IDAllocDaoImpl 保持一致
+    public LeafAlloc updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc leafAlloc) {
+        return updateMaxId("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.updateMaxIdByLastInsertId", leafAlloc.getKey(), leafAlloc.getStep());
+    }
+    // UPDATE 影响 0 行说明 tag 不存在，直接返回 null，不再读取配置
+    private LeafAlloc updateMaxId(String statement, String tag, int step) {
+        SqlSession sqlSession = sqlSessionFactory.openSession(true);
+        try {
+            LeafAlloc temp = new LeafAlloc();
+            temp.setKey(tag);
+            temp.setStep(step);
+            if (sqlSession.update(statement, temp) == 0) {
+                return null;
+            }   // 执行的是 SELECT biz_tag, chunk_size, ..., @leaf_step AS step FROM leaf_alloc WHERE biz_tag = #{tag}
+            LeafAlloc result = sqlSession.selectOne("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.getLeafAllocWithUpdatedStep", tag);
+            if (result == null) {
+                return null;    // 两条语句之间 tag 被删除了
+            }
+            result.setMaxId(temp.getMaxId());
+            return result;
+        } finally {
+            sqlSession.close();
+        }
+    }
+}
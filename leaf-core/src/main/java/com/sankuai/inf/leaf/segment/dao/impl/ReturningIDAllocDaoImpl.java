@@ -0,0 +1,36 @@
+package com.sankuai.inf.leaf.segment.dao.impl;
+
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import org.apache.ibatis.session.SqlSession;
+
+import javax.sql.DataSource;
+
+/**
+ * 支持 UPDATE ... RETURNING 的数据库（如 PostgreSQL）下，一条自动提交的 UPDATE 同时完成更新和查询，行锁只在这一次往返中持有
+ */
+public class ReturningIDAllocDaoImpl extends IDAllocDaoImpl {
+
+    public ReturningIDAllocDaoImpl(DataSource dataSource) {
+        super(dataSource);
+    }
+
+    @Override
+    public LeafAlloc updateMaxIdAndGetLeafAlloc(String tag) {
+        SqlSession sqlSession = sqlSessionFactory.openSession(true);
+        try {   // 执行的是 UPDATE leaf_alloc SET max_id = max_id + step WHERE biz_tag = #{tag} RETURNING ...
+            return sqlSession.selectOne("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.updateMaxIdReturning", tag);
+        } finally {
+            sqlSession.close();
+        }
+    }
+
+    @Override
+    public LeafAlloc updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc leafAlloc) {
+        SqlSession sqlSession = sqlSessionFactory.openSession(true);
+        try {   // 执行的是 UPDATE leaf_alloc SET max_id = max_id + #{step} WHERE biz_tag = #{key} RETURNING ...
+            return sqlSession.selectOne("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.updateMaxIdByCustomStepReturning", leafAlloc);
+        } finally {
+            sqlSession.close();
+        }
+    }
+}
@@ -5,6 +5,10 @@ public class LeafAlloc {
     private long maxId;
     private int step;
     private String updateTime;
+    private int chunkSize;
+    private int ringDepth;
+    private int minStep;
+    private int maxStep;
 
     public String getKey() {
         return key;
@@ -37,4 +41,36 @@ public class LeafAlloc {
     public void setUpdateTime(String updateTime) {
         this.updateTime = updateTime;
     }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getRingDepth() {
+        return ringDepth;
+    }
+
+    public void setRingDepth(int ringDepth) {
+        this.ringDepth = ringDepth;
+    }
+
+    public int getMinStep() {
+        return minStep;
+    }
+
+    public void setMinStep(int minStep) {
+        this.minStep = minStep;
+    }
+
+    public int getMaxStep() {
+        return maxStep;
+    }
+
+    public void setMaxStep(int maxStep) {
+        this.maxStep = maxStep;
+    }
 }
@@ -2,10 +2,17 @@ package com.sankuai.inf.leaf.segment.model;
 
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 号段，value 在 [max - step, max) 范围内递增，只在发布到 SegmentBuffer 之前设置 max 和 step
+ */
 public class Segment {
-    private AtomicLong value = new AtomicLong(0);
+    private final AtomicLong value = new AtomicLong(0);
     private volatile long max;
     private volatile int step;
+    private volatile Segment next; //环中的下一个segment，装载完成后才会设置
+    private volatile long startNanos; //成为当前segment的时间
+    private long seq; //在环中的序号，发布之前设置
+    private volatile long leased; //本地日志中已经持久化的租约上界，小于它的 id 才能发出
     private SegmentBuffer buffer;
 
     public Segment(SegmentBuffer buffer) {
@@ -16,10 +23,6 @@ public class Segment {
         return value;
     }
 
-    public void setValue(AtomicLong value) {
-        this.value = value;
-    }
-
     public long getMax() {
         return max;
     }
@@ -36,6 +39,38 @@ public class Segment {
         this.step = step;
     }
 
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public void setStartNanos(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    public long getLeased() {
+        return leased;
+    }
+
+    public void setLeased(long leased) {
+        this.leased = leased;
+    }
+
+    public Segment getNext() {
+        return next;
+    }
+
+    public void setNext(Segment next) {
+        this.next = next;
+    }
+
     public SegmentBuffer getBuffer() {
         return buffer;
     }
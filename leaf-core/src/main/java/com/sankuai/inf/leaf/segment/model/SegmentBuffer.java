@@ -1,34 +1,72 @@
 package com.sankuai.inf.leaf.segment.model;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * 双buffer
+ * 环形buffer，current 之后通过 Segment.next 串起已经装载好的 segment，最多同时持有 ringDepth 个 segment
+ * 每次从 DB 装载都会构建新的 Segment，装载完成后才对外发布，取号时只需读取 current 即可，不需要加锁
  */
 public class SegmentBuffer {
+    /**
+     * 消耗速率和装载耗时的平滑系数
+     */
+    private static final double EWMA_ALPHA = 0.3;
+    /**
+     * 环的默认深度，即当前 segment 加上一个预加载的 segment
+     */
+    public static final int DEFAULT_RING_DEPTH = 2;
+    /**
+     * 环的最大深度
+     */
+    public static final int MAX_RING_DEPTH = 8;
     private String key;
-    private Segment[] segments; //双buffer
-    private volatile int currentPos; //当前的使用的segment的index
-    private volatile boolean nextReady; //下一个segment是否处于可切换状态
+    private final AtomicReference<Segment> current; //当前使用的segment，切换时通过 cas 完成
+    private volatile Segment tail; //最后一个装载好的segment，只有装载线程会修改
+    private volatile int configuredDepth; //DB中为该tag配置的环深度
+    private final AtomicInteger grownDepth; //取号线程等待装载时自动加深的环深度
     private volatile boolean initOk; //是否初始化完成
     private final AtomicBoolean threadRunning; //线程是否在运行中
-    private final ReadWriteLock lock;
+    private final ThreadLocal<Stripe> stripes; //每个线程各自的条带
+    private final Queue<Thread> waiters; //等待下一个segment装载完成的线程
+
+    private volatile boolean accessed; //上一次淘汰检查之后是否被访问过
+    private volatile long lastAccess = System.currentTimeMillis(); //淘汰检查时看到的最近访问时间
 
     private volatile int step;
     private volatile int minStep;
+    private volatile int maxStep;
     private volatile long updateTimestamp;
-    // 构建了持有的两个内部 Segment，完成了相关参数的初始化
+    private volatile int chunkSize; //条带每次从segment中划取的id个数，为0时不开启条带模式
+    private volatile double consumeRate; //id消耗速率的EWMA，单位 个/ms
+    private volatile double loadLatency; //从DB装载segment耗时的EWMA，单位 ms
+    private volatile Segment reserve; //应急号段，不在环中，DB连续装载失败时才追加到环的末尾
+    private volatile int loadFailures; //连续装载失败的次数，只有装载线程会修改
+    private Segment sampleSegment; //上一次采样时的segment、value和时间，由 sampleLock 保护
+    private long sampleValue;
+    private long sampleNanos;
+    private final Object sampleLock = new Object();
+    // 构建了持有的内部 Segment，完成了相关参数的初始化
     public SegmentBuffer() {
-        segments = new Segment[]{new Segment(this), new Segment(this)}; // 一个 SegmentBuffer 持有两个 Segment，代表两个 id 字段
-        currentPos = 0; // 当前 Segment 的 pos
-        nextReady = false;  // 标志位，用于标志下一个 Segment 是否准备就绪
+        current = new AtomicReference<Segment>(new Segment(this));  // 初始的 Segment，第一次取号时从 DB 装载
+        tail = current.get();
+        configuredDepth = DEFAULT_RING_DEPTH;
+        grownDepth = new AtomicInteger(DEFAULT_RING_DEPTH);
         initOk = false; // 初始化的标志
         threadRunning = new AtomicBoolean(false);   // 这应该是线程启动的标志（该线程应该是用来获取备用 Segment 的）
-        lock = new ReentrantReadWriteLock();    // 可冲入的读写锁
+        waiters = new ConcurrentLinkedQueue<Thread>();
+        stripes = new ThreadLocal<Stripe>() {
+            @Override
+            protected Stripe initialValue() {
+                return new Stripe();
+            }
+        };
     }
 
     public String getKey() {
@@ -38,25 +76,79 @@ public class SegmentBuffer {
     public void setKey(String key) {
         this.key = key;
     }
-
-    public Segment[] getSegments() {
+    // 当前 segment 以及之后所有已经装载好的 segment，第一个是当前使用的 segment
+    public List<Segment> getSegments() {
+        List<Segment> segments = new ArrayList<Segment>(getRingDepth());
+        for (Segment segment = current.get(); segment != null; segment = segment.getNext()) {
+            segments.add(segment);
+        }
         return segments;
     }
     // 获取当前使用的 Segment
     public Segment getCurrent() {
-        return segments[currentPos];
+        return current.get();
+    }
+    // 发布已经从 DB 装载完成的 segment，追加到环的末尾，只有装载线程会调用
+    public void append(Segment next) {
+        next.setSeq(tail.getSeq() + 1);
+        tail.setNext(next); // volatile 写保证其他线程看到 next 时也能看到完整的 segment
+        tail = next;
+    }
+    // 当前 segment 用完后，把 current 从 expected 切换到下一个 segment，只有一个线程的 cas 能成功，
+    // 返回 false 表示 expected 仍是当前 segment 且下一个 segment 没有就绪
+    public boolean switchFrom(Segment expected) {
+        if (current.get() != expected) {    // 已经被其他线程切换过了
+            return true;
+        }
+        Segment next = expected.getNext();
+        if (next == null) {
+            return false;
+        }
+        if (current.compareAndSet(expected, next)) {
+            long now = System.nanoTime();
+            next.setStartNanos(now);
+            if (expected.getStartNanos() > 0 && now > expected.getStartNanos()) {   // 整个 segment 的使用时长也是一次消耗速率的采样，步长小的 tag 只能靠它采样
+                updateConsumeRate(expected.getStep() * 1000000.0 / (now - expected.getStartNanos()));
+            }
+        }
+        return true;
+    }
+    // 环里还需要再装载 segment
+    public boolean needsFill() {
+        return getReadyCount() < getRingDepth() - 1;
+    }
+
+    // current之后已经装载好的segment个数，由序号相减得到，不会因为切换线程被挂起而与环的实际状态不一致；
+    // 必须先读 current 再读 tail，append 尚未更新 tail 时可能短暂为 -1
+    public int getReadyCount() {
+        Segment segment = current.get();
+        return (int) (tail.getSeq() - segment.getSeq());
+    }
+
+    public int getRingDepth() {
+        return Math.max(configuredDepth, grownDepth.get());
     }
 
-    public int getCurrentPos() {
-        return currentPos;
+    public void setConfiguredDepth(int configuredDepth) {
+        this.configuredDepth = Math.min(Math.max(configuredDepth, DEFAULT_RING_DEPTH), MAX_RING_DEPTH);
     }
-    // 计算另外一个 pos 的索引
-    public int nextPos() {
-        return (currentPos + 1) % 2;
+    // 取号线程不得不等待装载时把环加深一层，同一次等待中多个线程只会加深一次；
+    // expectedDepth 是 getRingDepth 的返回值，按配置深度和自动加深的深度中较大的一个比较，配置深度大于默认值的 tag 也能加深
+    public boolean growDepth(int expectedDepth) {
+        while (expectedDepth < MAX_RING_DEPTH) {
+            int grown = grownDepth.get();
+            if (Math.max(configuredDepth, grown) != expectedDepth) {
+                return false;
+            }
+            if (grownDepth.compareAndSet(grown, expectedDepth + 1)) {
+                return true;
+            }
+        }
+        return false;
     }
-    // 切换到另外一个 segment 的 pos
-    public void switchPos() {
-        currentPos = nextPos();
+
+    public int getGrownDepth() {
+        return grownDepth.get();
     }
 
     public boolean isInitOk() {
@@ -68,23 +160,62 @@ public class SegmentBuffer {
     }
     // 查看下一个 segment 是否准备就绪
     public boolean isNextReady() {
-        return nextReady;
-    }
-
-    public void setNextReady(boolean nextReady) {
-        this.nextReady = nextReady;
+        return current.get().getNext() != null;
     }
 
     public AtomicBoolean getThreadRunning() {
         return threadRunning;
     }
+    // 装载线程运行期间挂起当前线程，直到 expected 之后的 segment 装载好或者装载线程结束后将其唤醒，或者超过 timeoutNanos
+    public void awaitLoad(Segment expected, long timeoutNanos) {
+        Thread thread = Thread.currentThread();
+        waiters.add(thread);    // 必须先入队再检查 threadRunning，否则可能错过装载线程的唤醒
+        try {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (threadRunning.get() && expected.getNext() == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || thread.isInterrupted()) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            waiters.remove(thread);
+        }
+    }
+    // 装载线程每装载好一个 segment 以及把 threadRunning 置为 false 之后调用，唤醒所有等待的线程
+    public void signalWaiters() {
+        for (Thread waiter : waiters) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    // 获取当前线程的条带
+    public Stripe getStripe() {
+        return stripes.get();
+    }
+
+    // 取号时调用，已经标记过就只读不写，避免所有取号线程都写同一个字段
+    public void touch() {
+        if (!accessed) {
+            accessed = true;
+        }
+    }
 
-    public Lock rLock() {
-        return lock.readLock();
+    public boolean isAccessed() {
+        return accessed;
     }
 
-    public Lock wLock() {
-        return lock.writeLock();
+    public void setAccessed(boolean accessed) {
+        this.accessed = accessed;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public void setLastAccess(long lastAccess) {
+        this.lastAccess = lastAccess;
     }
 
     public int getStep() {
@@ -103,6 +234,14 @@ public class SegmentBuffer {
         this.minStep = minStep;
     }
 
+    public int getMaxStep() {
+        return maxStep;
+    }
+
+    public void setMaxStep(int maxStep) {
+        this.maxStep = maxStep;
+    }
+
     public long getUpdateTimestamp() {
         return updateTimestamp;
     }
@@ -111,18 +250,75 @@ public class SegmentBuffer {
         this.updateTimestamp = updateTimestamp;
     }
 
+    private void updateConsumeRate(double rate) {
+        synchronized (sampleLock) {
+            consumeRate = consumeRate == 0 ? rate : EWMA_ALPHA * rate + (1 - EWMA_ALPHA) * consumeRate;
+        }
+    }
+    // 记录一次消耗速率的采样，segment 切换后的第一次采样只作为新的起点
+    public void sampleConsumption(Segment segment, long value, long nanos) {
+        synchronized (sampleLock) {
+            if (segment == sampleSegment && value > sampleValue && nanos > sampleNanos) {
+                updateConsumeRate((value - sampleValue) * 1000000.0 / (nanos - sampleNanos));
+            }
+            sampleSegment = segment;
+            sampleValue = value;
+            sampleNanos = nanos;
+        }
+    }
+    // 记录一次从 DB 装载 segment 的耗时，只有装载线程会调用
+    public void recordLoadLatency(double millis) {
+        loadLatency = loadLatency == 0 ? millis : EWMA_ALPHA * millis + (1 - EWMA_ALPHA) * loadLatency;
+    }
+
+    public double getConsumeRate() {
+        return consumeRate;
+    }
+
+    public double getLoadLatency() {
+        return loadLatency;
+    }
+
+    public Segment getReserve() {
+        return reserve;
+    }
+
+    public void setReserve(Segment reserve) {
+        this.reserve = reserve;
+    }
+
+    public int getLoadFailures() {
+        return loadFailures;
+    }
+
+    public void setLoadFailures(int loadFailures) {
+        this.loadFailures = loadFailures;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("SegmentBuffer{");
         sb.append("key='").append(key).append('\'');
-        sb.append(", segments=").append(Arrays.toString(segments));
-        sb.append(", currentPos=").append(currentPos);
-        sb.append(", nextReady=").append(nextReady);
+        sb.append(", segments=").append(getSegments());
+        sb.append(", ringDepth=").append(getRingDepth());
         sb.append(", initOk=").append(initOk);
         sb.append(", threadRunning=").append(threadRunning);
         sb.append(", step=").append(step);
         sb.append(", minStep=").append(minStep);
+        sb.append(", maxStep=").append(maxStep);
         sb.append(", updateTimestamp=").append(updateTimestamp);
+        sb.append(", chunkSize=").append(chunkSize);
+        sb.append(", consumeRate=").append(consumeRate);
+        sb.append(", loadLatency=").append(loadLatency);
+        sb.append(", reserve=").append(reserve);
         sb.append('}');
         return sb.toString();
     }
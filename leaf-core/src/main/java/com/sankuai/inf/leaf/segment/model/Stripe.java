@@ -0,0 +1,31 @@
+package com.sankuai.inf.leaf.segment.model;
+
+/**
+ * 条带，线程私有的一小段 id [next, end)，只会被持有它的线程读写，所以不需要任何同步
+ */
+public class Stripe {
+    private long next;
+    private long end;
+
+    public boolean hasNext() {
+        return next < end;
+    }
+
+    public long next() {
+        return next++;
+    }
+    // 换上从 segment 中新划出的一段 id
+    public void reset(long start, long end) {
+        this.next = start;
+        this.end = end;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("Stripe{");
+        sb.append("next=").append(next);
+        sb.append(", end=").append(end);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,98 @@
+package com.sankuai.inf.leaf.snowflake;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * snowflake 取号使用的毫秒时钟，通过 SnowflakeIDGenImpl 的 timeGen 接入：
+ * <ul>
+ * <li>SYSTEM：每次调用 System.currentTimeMillis，和之前的行为一致</li>
+ * <li>MONOTONIC：启动时以 System.currentTimeMillis 为起点，之后按 System.nanoTime 的流逝计算，不受系统时间调整的影响</li>
+ * <li>TICKER：后台线程每毫秒按 MONOTONIC 的方式更新一次 volatile 变量，取号只读这个变量；等待下一毫秒时挂起线程，由后台线程唤醒</li>
+ * </ul>
+ * 后两种方式长时间运行后会和系统时间有偏差（取决于 nanoTime 的精度），id 中的时间戳只用于排序而不用于对时时可以接受
+ */
+public abstract class SnowflakeClock {
+    public static final SnowflakeClock SYSTEM = new SnowflakeClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    public abstract long currentTimeMillis();
+    // 等待时钟越过 timestamp，默认直接返回，由调用方自旋
+    public void waitAfter(long timestamp) {
+    }
+    // 停止后台线程（如果有）
+    public void close() {
+    }
+    // 根据配置名称创建时钟：system、monotonic、ticker
+    public static SnowflakeClock of(String name) {
+        if ("monotonic".equalsIgnoreCase(name)) {
+            return new Monotonic();
+        } else if ("ticker".equalsIgnoreCase(name)) {
+            return new Ticker();
+        } else if (name == null || name.isEmpty() || "system".equalsIgnoreCase(name)) {
+            return SYSTEM;
+        }
+        throw new IllegalArgumentException("unknown snowflake clock " + name);
+    }
+
+    static class Monotonic extends SnowflakeClock {
+        final long anchorMillis = System.currentTimeMillis();
+        final long anchorNanos = System.nanoTime();
+
+        @Override
+        public long currentTimeMillis() {
+            return anchorMillis + (System.nanoTime() - anchorNanos) / 1000000;
+        }
+    }
+
+    static class Ticker extends Monotonic implements Runnable {
+        private volatile long now = super.currentTimeMillis();
+        private final Queue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();  // 等待下一毫秒的线程
+        private volatile boolean running = true;
+
+        Ticker() {
+            Thread thread = new Thread(this, "Thread-Snowflake-Ticker");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+        // 挂起到下一次更新，最多 1ms，避免后台线程调度延迟时等待过久；先登记再检查，不会错过登记前刚发生的更新
+        @Override
+        public void waitAfter(long timestamp) {
+            Thread thread = Thread.currentThread();
+            waiters.add(thread);
+            if (now <= timestamp) {
+                LockSupport.parkNanos(this, 1000000);
+            }
+            waiters.remove(thread);
+        }
+
+        @Override
+        public void close() {
+            running = false;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                long millis = super.currentTimeMillis();
+                if (millis > now) {
+                    now = millis;
+                    for (Thread thread : waiters) {
+                        LockSupport.unpark(thread);
+                    }
+                }
+                LockSupport.parkNanos(1000000 - (System.nanoTime() - anchorNanos) % 1000000);   // 对齐到下一个毫秒边界
+            }
+        }
+    }
+}
@@ -2,13 +2,22 @@ package com.sankuai.inf.leaf.snowflake;
 
 import com.google.common.base.Preconditions;
 import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.IdRange;
 import com.sankuai.inf.leaf.common.Result;
 import com.sankuai.inf.leaf.common.Status;
 import com.sankuai.inf.leaf.common.Utils;
+import com.sankuai.inf.leaf.snowflake.model.SnowflakeId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SnowflakeIDGenImpl implements IDGen {
 
@@ -18,22 +27,43 @@ public class SnowflakeIDGenImpl implements IDGen {
     }
 
     static private final Logger LOGGER = LoggerFactory.getLogger(SnowflakeIDGenImpl.class);
+    /**
+     * 当前时间超出位布局能够表示的时间戳范围，继续发号时间戳会溢出到 worker id 和符号位；-4 到 -7 已被二进制协议使用
+     */
+    public static final long EXCEPTION_LAYOUT_EXPIRED = -8;
 
-    private final long twepoch = 1288834974657L;    // 时间元时刻
-    private final long workerIdBits = 10L;  // worker id 所占的位数
-    private final long maxWorkerId = -1L ^ (-1L << workerIdBits);//最大能够分配的workerid =1023
-    private final long sequenceBits = 12L;  // 序列号所占的位长度
-    private final long workerIdShift = sequenceBits;    // worker id 所应该移动的位数
-    private final long timestampLeftShift = sequenceBits + workerIdBits;    // 时间戳应该移动的位数
-    private final long sequenceMask = -1L ^ (-1L << sequenceBits);  // 序列号掩码
+    private final SnowflakeLayout layout;   // id 的位布局
+    private final long twepoch;    // 时间元时刻
+    private final long maxWorkerId;   // 布局允许的最大 worker id，默认布局下为 1023
+    private final long sequenceBits;  // 序列号所占的位长度
+    private final long workerIdShift;    // worker id 所应该移动的位数
+    private final long timestampLeftShift;    // 时间戳应该移动的位数
+    private final long sequenceMask;  // 序列号掩码
+    private final long expireTime;  // 布局能够使用到的最后时刻
     private long workerId;
-    private long sequence = 0L; // 初始序列号
-    private long lastTimestamp = -1L;   // 初始时间戳
+    /**
+     * 上一个 id 的时间戳和序列号打包在一个 long 中：高位为时间戳（ms），低 sequenceBits 位为序列号，
+     * 所有取号线程通过 CAS 推进这一个状态，不再对整个生成器加锁
+     */
+    private final AtomicLong state = new AtomicLong();
+    /**
+     * 开启 perKeySequence 后每个 key 各自的状态，超过 maxKeys 个 key 之后新出现的 key 共用 state
+     */
+    private final ConcurrentMap<String, AtomicLong> keyStates = new ConcurrentHashMap<String, AtomicLong>();
+    private boolean perKeySequence = false; // 每个 key 使用独立的序列号空间，不同 key 之间的 id 可能相同
+    private int maxKeys = 1024; // 使用独立状态的 key 数上限
+    private SnowflakeClock clock = SnowflakeClock.SYSTEM;   // timeGen 使用的时钟
+    private long maxBorrowMillis = 0;   // 逻辑时钟最多领先系统时钟的毫秒数，0 表示不借用
+    private static final long RETRY = Long.MIN_VALUE;
     public boolean initFlag = false;    // 初始化标志
-    private static final Random RANDOM = new Random();
     private int port;
     // 主要是构建了 SnowflakeZookeeperHolder，负责和 zookeeper 的交互，然后尝试从 zookeeper 获取 worker id，失败的情况下从本地获取 worker id
     public SnowflakeIDGenImpl(String zkAddress, int port) {
+        this(zkAddress, port, SnowflakeLayout.DEFAULT);
+    }
+
+    public SnowflakeIDGenImpl(String zkAddress, int port, SnowflakeLayout layout) {
+        this(layout);
         this.port = port;   //  缓存 port
         SnowflakeZookeeperHolder holder = new SnowflakeZookeeperHolder(Utils.getIp(), String.valueOf(port), zkAddress);
         initFlag = holder.init();   // 这里就是一个尝试从 zookeeper 中获取 worker id 的过程，如果在获取 worker id 的过程中出现错误，那么就使用本地缓存的 worker id
@@ -43,55 +73,231 @@ public class SnowflakeIDGenImpl implements IDGen {
         } else {
             Preconditions.checkArgument(initFlag, "Snowflake Id Gen is not init ok");
         }   // worker id 是有效的
-        Preconditions.checkArgument(workerId >= 0 && workerId <= maxWorkerId, "workerID must gte 0 and lte 1023");
-    }
-    // 获取时间戳，和上一个 id 的时间戳比对，如果不一致，跟 worker id 和序列号拼凑成 id 返回，否则变更序列号，再拼凑出 id 返回，如果变更序列号可能导致 id 重复，那么人为将时间戳等待到之后的时刻，再拼凑 id 返回
-    public synchronized Result get(String key) {
-        long timestamp = timeGen(); // 获取当前的系统时间
-        if (timestamp < lastTimestamp) {    // 如果时间发生了回拨
-            long offset = lastTimestamp - timestamp;
-            if (offset <= 5) {  // 如果回拨值小于 5
-                try {
-                    wait(offset << 1);  // 那么就人为的等待两倍的回拨值
-                    timestamp = timeGen();  // 重新获取系统时间
-                    if (timestamp < lastTimestamp) {    // 如果人为调整后，时间还是有回拨现象，返回异常
-                        return new Result(-1, Status.EXCEPTION);    // 返回错误 result
-                    }
-                } catch (InterruptedException e) {  // 如果人为等待的过程中，线程被中断了，那么日志记录错误，返回错误 result
-                    LOGGER.error("wait interrupted");
-                    return new Result(-2, Status.EXCEPTION);
-                }
+        checkWorkerId();
+    }
+    // 直接指定 worker id，不经过 zookeeper，用于测试或者 worker id 由外部分配的场景
+    public SnowflakeIDGenImpl(long workerId) {
+        this(workerId, SnowflakeLayout.DEFAULT);
+    }
+
+    public SnowflakeIDGenImpl(long workerId, SnowflakeLayout layout) {
+        this(layout);
+        this.workerId = workerId;
+        this.initFlag = true;
+        checkWorkerId();
+    }
+
+    private SnowflakeIDGenImpl(SnowflakeLayout layout) {
+        this.layout = layout;
+        this.twepoch = layout.getEpoch();
+        this.maxWorkerId = layout.getMaxWorkerId();
+        this.sequenceBits = layout.getSequenceBits();
+        this.workerIdShift = sequenceBits;
+        this.timestampLeftShift = sequenceBits + layout.getWorkerIdBits();
+        this.sequenceMask = layout.getSequenceMask();
+        this.expireTime = layout.getExpireTime();
+        LOGGER.info("Snowflake layout {}, usable until {}", layout, new Date(expireTime));
+    }
+
+    private void checkWorkerId() {
+        Preconditions.checkArgument(workerId >= 0 && workerId <= maxWorkerId,
+                "workerID %s must gte 0 and lte %s, use more worker id bits", workerId, maxWorkerId);
+    }
+    @Override
+    public Result get(String key) {
+        return Result.of(nextId(key));
+    }
+    // 获取时间戳，和上一个 id 的时间戳比对，如果不一致，跟 worker id 和随机的序列号拼凑成 id 返回，否则序列号加一，
+    // 当前毫秒的序列号用完时等到下一毫秒重试；新状态通过 CAS 写入，失败说明其他线程抢先推进了状态，重新读取后再来一次
+    @Override   // 时钟回拨或者超出布局的时间范围时返回负数的错误码
+    public long nextId(String key) {
+        AtomicLong state = state(key);
+        while (true) {
+            long current = state.get(); // 必须先读状态再读时间，保证读到的时间不早于写入这个状态的线程读到的时间
+            long timestamp = nextTimestamp(state, current);
+            if (timestamp == RETRY) {
+                continue;
+            }
+            if (timestamp < 0) {
+                return timestamp;
+            }
+            if (timestamp > expireTime) {
+                return EXCEPTION_LAYOUT_EXPIRED;
+            }
+            long next;
+            if (timestamp == current >>> sequenceBits) {    // 同一毫秒内多次请求，唯一 id 就需要通过序列号来区分
+                next = current + 1;
+            } else {    // 新的毫秒开始，序列号随机一个起始值
+                next = (timestamp << sequenceBits) | randomSequence();
+            }
+            if (state.compareAndSet(current, next)) {
+                return makeId(timestamp, next & sequenceMask);
+            }
+        }
+    }
+
+    @Override   // 每次 CAS 为当前毫秒预留一段连续的序列号，当前毫秒的序列号用完后等到下一毫秒继续预留
+    public BatchResult get(String key, int count) {
+        if (count <= 0) {
+            return new BatchResult(-4, Status.EXCEPTION);
+        }
+        AtomicLong state = state(key);
+        List<IdRange> ranges = new ArrayList<IdRange>();
+        int remaining = count;
+        while (remaining > 0) {
+            long current = state.get();
+            long timestamp = nextTimestamp(state, current);
+            if (timestamp == RETRY) {
+                continue;
+            }
+            if (timestamp < 0) {
+                return new BatchResult(timestamp, Status.EXCEPTION);
+            }
+            if (timestamp > expireTime) {
+                return new BatchResult(EXCEPTION_LAYOUT_EXPIRED, Status.EXCEPTION);
+            }
+            long first;
+            if (timestamp == current >>> sequenceBits) {    // 同一毫秒内接着上一次的序列号往后分配
+                first = (current & sequenceMask) + 1;
             } else {
-                return new Result(-3, Status.EXCEPTION);    // 如果回拨时长超过 5，那么就返回错误 result
+                first = randomSequence();
             }
+            int reserved = (int) Math.min(remaining, sequenceMask - first + 1);    // 本毫秒内能够预留的序列号个数
+            if (state.compareAndSet(current, (timestamp << sequenceBits) | (first + reserved - 1))) {
+                ranges.add(new IdRange(makeId(timestamp, first), reserved));  // 同一毫秒内连续的序列号对应连续的 id
+                remaining -= reserved;
+            }
+        }
+        return new BatchResult(ranges);
+    }
+    // 根据当前状态决定下一个 id 使用的时间戳：和上一个 id 同一毫秒时调用方接着分配序列号，否则从新的毫秒开始；
+    // 等待过时钟后返回 RETRY 由调用方重新读取状态，时钟回拨超出范围时返回负的异常码。
+    // 开启借用时逻辑时钟最多领先系统时钟 maxBorrowMillis：序列号用完直接进入下一个逻辑毫秒，回拨不超过该值时继续在逻辑时钟上分配
+    private long nextTimestamp(AtomicLong state, long current) {
+        long lastTimestamp = current >>> sequenceBits;
+        long now = timeGen();
+        if (now < lastTimestamp && lastTimestamp - now > maxBorrowMillis) {
+            long code = waitClockBackwards(state, lastTimestamp - now);
+            return code < 0 ? code : RETRY;
+        }
+        if (now > lastTimestamp) {
+            return now;
+        }
+        if ((current & sequenceMask) != sequenceMask) {
+            return lastTimestamp;
+        }
+        if (lastTimestamp + 1 - now > maxBorrowMillis) {  // 当前毫秒的序列号已经用完，不能再往前借用时等待系统时钟追上来
+            tilNextMillis(lastTimestamp - maxBorrowMillis);
+            return RETRY;
+        }
+        return lastTimestamp + 1;
+    }
+    // 时间发生了回拨，回拨不超过 5ms 时等待两倍的回拨值后返回 0 由调用方重试，否则返回负的异常码；等待时不持有任何锁，不影响其他线程
+    private long waitClockBackwards(AtomicLong state, long offset) {
+        if (offset > 5) {
+            return -3;  // 如果回拨时长超过 5，那么就返回错误 result
+        }
+        long lastTimestamp = state.get() >>> sequenceBits;
+        try {
+            Thread.sleep(offset << 1);  // 那么就人为的等待两倍的回拨值
+        } catch (InterruptedException e) {  // 如果人为等待的过程中，线程被中断了，那么日志记录错误，返回错误 result
+            LOGGER.error("wait interrupted");
+            Thread.currentThread().interrupt();
+            return -2;
+        }
+        if (lastTimestamp - timeGen() > maxBorrowMillis) {  // 如果人为调整后，时间还是有回拨现象，返回异常
+            return -1;
+        }
+        return 0;
+    }
+    // key 对应的状态，没有开启 perKeySequence 时所有 key 共用一个状态
+    private AtomicLong state(String key) {
+        if (!perKeySequence || key == null) {
+            return state;
         }
-        if (lastTimestamp == timestamp) {   // 如果时间戳一致，也就是在 1ms 内多次请求，唯一 id 就需要通过序列号来区分
-            sequence = (sequence + 1) & sequenceMask;   // 计算此时的序列号
-            if (sequence == 0) {    // 如果序列号为 0
-                //seq 为0的时候表示是下一毫秒时间开始对seq做随机
-                sequence = RANDOM.nextInt(100); // 随机获得序列值
-                timestamp = tilNextMillis(lastTimestamp);   // 自旋直到下一个 lastTimestamp 时刻之后，返回此时的时间戳（这里是为了防止在 1ms 时间内，sequence 递增太多，导致重复，从而用时间来区分）
+        AtomicLong keyState = keyStates.get(key);
+        if (keyState == null) {
+            if (keyStates.size() >= maxKeys) {  // key 过多时不再创建，避免任意的 key 撑大内存
+                return state;
+            }
+            keyState = new AtomicLong();
+            AtomicLong existing = keyStates.putIfAbsent(key, keyState);
+            if (existing != null) {
+                keyState = existing;
             }
-        } else {    // 执行到这里，说明时刻发生了变化，已经确保了 id 的唯一性，所以 sequence 随机一个就行
-            //如果是新的ms开始
-            sequence = RANDOM.nextInt(100);
         }
-        lastTimestamp = timestamp;  // 记录下当前时间戳
-        long id = ((timestamp - twepoch) << timestampLeftShift) | (workerId << workerIdShift) | sequence;   // 根据时间戳、worker id、序列号来构建唯一 id
-        return new Result(id, Status.SUCCESS);  // 返回构建出来的 id 值
-
+        return keyState;
+    }
+    // 新的毫秒开始时序列号的起始值，随机是为了在请求量低时 id 的低位也能分布均匀；序列号位数很少时不能超过掩码
+    private long randomSequence() {
+        return ThreadLocalRandom.current().nextInt((int) Math.min(100, (sequenceMask + 1) / 2));
     }
-    // 自旋直到下一个 lastTimestamp 时刻之后，返回此时的时间戳
+    // 根据时间戳、worker id、序列号来构建唯一 id
+    private long makeId(long timestamp, long sequence) {
+        return ((timestamp - twepoch) << timestampLeftShift) | (workerId << workerIdShift) | sequence;
+    }
+    // 等待直到下一个 lastTimestamp 时刻之后，返回此时的时间戳；系统时钟下是自旋，ticker 时钟下挂起到下一次更新
     protected long tilNextMillis(long lastTimestamp) {
         long timestamp = timeGen(); // 当前时间戳
         while (timestamp <= lastTimestamp) {    // 直到时间戳变为 lastTimestamp 时刻之后的时间戳
+            clock.waitAfter(lastTimestamp);
             timestamp = timeGen();
         }
         return timestamp;
     }
     // 获取当前时间戳
     protected long timeGen() {
-        return System.currentTimeMillis();
+        return clock.currentTimeMillis();
+    }
+
+    // 逻辑时钟当前领先系统时钟的毫秒数，没有借用时为 0；每个 key 独立时取领先最多的
+    public long getAheadMillis() {
+        long last = state.get() >>> sequenceBits;
+        for (AtomicLong keyState : keyStates.values()) {
+            last = Math.max(last, keyState.get() >>> sequenceBits);
+        }
+        return Math.max(last - timeGen(), 0);
+    }
+
+    public boolean isPerKeySequence() {
+        return perKeySequence;
+    }
+
+    public void setPerKeySequence(boolean perKeySequence) {
+        this.perKeySequence = perKeySequence;
+    }
+
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    public long getMaxBorrowMillis() {
+        return maxBorrowMillis;
+    }
+
+    public void setMaxBorrowMillis(long maxBorrowMillis) {
+        this.maxBorrowMillis = maxBorrowMillis;
+    }
+
+    public SnowflakeClock getClock() {
+        return clock;
+    }
+    // 需要在开始取号之前设置，换成比当前时钟慢的时钟会被当作时钟回拨
+    public void setClock(SnowflakeClock clock) {
+        this.clock = clock;
+    }
+
+    // 按当前的位布局把 id 拆回时间戳、worker id 和序列号
+    public SnowflakeId decode(long id) {
+        return layout.decode(id);
+    }
+
+    public SnowflakeLayout getLayout() {
+        return layout;
     }
 
     public long getWorkerId() {
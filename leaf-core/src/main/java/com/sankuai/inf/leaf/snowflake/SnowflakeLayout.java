@@ -0,0 +1,90 @@
+package com.sankuai.inf.leaf.snowflake;
+
+import com.google.common.base.Preconditions;
+import com.sankuai.inf.leaf.snowflake.model.SnowflakeId;
+
+/**
+ * snowflake id 的位布局：最高位为 0，其后依次是时间戳（相对 epoch 的毫秒数）、worker id、序列号，
+ * 时间戳占用 63 - workerIdBits - sequenceBits 位。默认布局和原来写死的一致：epoch 为 1288834974657，10 位 worker id，12 位序列号
+ */
+public class SnowflakeLayout {
+    public static final SnowflakeLayout DEFAULT = new SnowflakeLayout(1288834974657L, 10, 12);
+    /**
+     * 序列号位数的上限，生成器把毫秒时间戳和序列号打包在一个 long 中，时间戳本身需要 41 位
+     */
+    private static final int MAX_SEQUENCE_BITS = 22;
+
+    private final long epoch;
+    private final int workerIdBits;
+    private final int sequenceBits;
+    private final int timestampBits;
+
+    public SnowflakeLayout(long epoch, int workerIdBits, int sequenceBits) {
+        Preconditions.checkArgument(workerIdBits >= 1 && sequenceBits >= 1, "workerIdBits and sequenceBits must gte 1");
+        Preconditions.checkArgument(sequenceBits <= MAX_SEQUENCE_BITS, "sequenceBits must lte %s", MAX_SEQUENCE_BITS);
+        this.epoch = epoch;
+        this.workerIdBits = workerIdBits;
+        this.sequenceBits = sequenceBits;
+        this.timestampBits = 63 - workerIdBits - sequenceBits;
+        long elapsed = System.currentTimeMillis() - epoch;
+        Preconditions.checkArgument(elapsed >= 0, "epoch %s is in the future", epoch);
+        Preconditions.checkArgument(elapsed <= getMaxTimestamp(),
+                "%s timestamp bits can not hold %sms since epoch %s", timestampBits, elapsed, epoch);
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int getWorkerIdBits() {
+        return workerIdBits;
+    }
+
+    public int getSequenceBits() {
+        return sequenceBits;
+    }
+
+    public int getTimestampBits() {
+        return timestampBits;
+    }
+
+    public long getMaxWorkerId() {
+        return -1L ^ (-1L << workerIdBits);
+    }
+
+    public long getSequenceMask() {
+        return -1L ^ (-1L << sequenceBits);
+    }
+    // 相对 epoch 的时间戳上限（ms）
+    public long getMaxTimestamp() {
+        return -1L ^ (-1L << timestampBits);
+    }
+    // 该布局能够使用到的最后时刻（ms）
+    public long getExpireTime() {
+        return epoch + getMaxTimestamp();
+    }
+    // 布局在 horizonMillis 之内就会用完时抛出 IllegalArgumentException，启动时拒绝很快就要过期的布局
+    public void checkExpireHorizon(long horizonMillis) {
+        long remaining = getExpireTime() - System.currentTimeMillis();
+        Preconditions.checkArgument(remaining > horizonMillis,
+                "%s timestamp bits since epoch %s expire in %sms, less than %sms", timestampBits, epoch, remaining, horizonMillis);
+    }
+    // 把 id 拆回时间戳、worker id 和序列号，时间戳为绝对时间（ms）
+    public SnowflakeId decode(long id) {
+        long sequence = id & getSequenceMask();
+        long workerId = (id >>> sequenceBits) & getMaxWorkerId();
+        long timestamp = (id >>> (sequenceBits + workerIdBits)) + epoch;
+        return new SnowflakeId(id, timestamp, workerId, sequence);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("SnowflakeLayout{");
+        sb.append("epoch=").append(epoch);
+        sb.append(", timestampBits=").append(timestampBits);
+        sb.append(", workerIdBits=").append(workerIdBits);
+        sb.append(", sequenceBits=").append(sequenceBits);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package com.sankuai.inf.leaf.snowflake.model;
+
+/**
+ * 按 SnowflakeLayout 拆开的 snowflake id，timestamp 为绝对时间（ms）
+ */
+public class SnowflakeId {
+    private final long id;
+    private final long timestamp;
+    private final long workerId;
+    private final long sequence;
+
+    public SnowflakeId(long id, long timestamp, long workerId, long sequence) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.workerId = workerId;
+        this.sequence = sequence;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("SnowflakeId{");
+        sb.append("id=").append(id);
+        sb.append(", timestamp=").append(timestamp);
+        sb.append(", workerId=").append(workerId);
+        sb.append(", sequence=").append(sequence);
+        sb.append('}');
+        return sb.toString();
+    }
+}
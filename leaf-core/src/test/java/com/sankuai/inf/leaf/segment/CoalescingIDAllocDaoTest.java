@@ -0,0 +1,149 @@
+package com.sankuai.inf.leaf.segment;
+
+import com.sankuai.inf.leaf.segment.dao.AsyncIDAllocDao;
+import com.sankuai.inf.leaf.segment.dao.impl.CoalescingIDAllocDao;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CoalescingIDAllocDaoTest {
+
+    @Test
+    public void testCoalesceTags() throws InterruptedException {
+        MockIDAllocDao mock = new MockIDAllocDao();
+        for (int i = 0; i < 100; i++) {
+            mock.addTag("tag-" + i, 100);
+        }
+        final CoalescingIDAllocDao dao = new CoalescingIDAllocDao(mock, 20);
+        final AtomicInteger failed = new AtomicInteger();
+        Thread[] threads = new Thread[100];
+        for (int i = 0; i < threads.length; i++) {
+            final String tag = "tag-" + i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    LeafAlloc first = dao.updateMaxIdAndGetLeafAlloc(tag);   // 同一个 tag 的两次更新不会合并到同一批
+                    LeafAlloc temp = new LeafAlloc();
+                    temp.setKey(tag);
+                    temp.setStep(500);
+                    LeafAlloc second = dao.updateMaxIdByCustomStepAndGetLeafAlloc(temp);
+                    if (first.getMaxId() != 101 || second.getMaxId() != 601 || second.getStep() != 100) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, failed.get());
+        Assert.assertTrue(mock.getBatchCount() < 100);
+    }
+
+    @Test
+    public void testLoadsNotLimitedByLoaderThreads() throws InterruptedException {
+        MockIDAllocDao mock = new MockIDAllocDao();
+        for (int i = 0; i < 20; i++) {
+            mock.addTag("tag-" + i, 100);
+        }
+        final SegmentIDGenImpl idGen = new SegmentIDGenImpl();
+        idGen.setDao(new CoalescingIDAllocDao(mock, 200));
+        idGen.setLoader(new SegmentLoader(2, 1024));
+        idGen.init();
+        Thread[] threads = new Thread[20];
+        for (int i = 0; i < threads.length; i++) {    // 并发初始化 20 个 tag 的当前 segment
+            final String tag = "tag-" + i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    idGen.get(tag);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        int before = mock.getBatchCount();
+        for (int i = 0; i < 20; i++) {  // 用掉 10% 以上后开始异步装载下一个 segment
+            for (int j = 0; j < 20; j++) {
+                idGen.get("tag-" + i);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        for (SegmentBuffer buffer : idGen.getCache().values()) {
+            while (buffer.getReadyCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, buffer.getReadyCount());
+        }
+        Assert.assertEquals(before + 1, mock.getBatchCount());  // 只有 2 个装载线程，20 个 tag 仍然合并在同一批中
+    }
+
+    // DB 阻塞时排队的异步更新按 deadline 先后合并，超过队列容量的直接失败
+    @Test
+    public void testDeadlineOrderAndCapacity() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        MockIDAllocDao mock = new MockIDAllocDao() {
+            @Override
+            public List<LeafAlloc> updateMaxIdAndGetLeafAllocs(List<LeafAlloc> leafAllocs) {
+                started.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (LeafAlloc leafAlloc : leafAllocs) {
+                    order.add(leafAlloc.getKey());
+                }
+                return super.updateMaxIdAndGetLeafAllocs(leafAllocs);
+            }
+        };
+        for (String tag : new String[]{"a", "b", "c", "d", "e"}) {
+            mock.addTag(tag, 100);
+        }
+        CoalescingIDAllocDao dao = new CoalescingIDAllocDao(mock, 1, 3);
+        final CountDownLatch done = new CountDownLatch(4);
+        final AtomicInteger failed = new AtomicInteger();
+        AsyncIDAllocDao.Callback callback = new AsyncIDAllocDao.Callback() {
+            @Override
+            public void onSuccess(LeafAlloc leafAlloc, long costNanos) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(RuntimeException e) {
+                failed.incrementAndGet();
+            }
+        };
+        dao.updateMaxIdAsync(alloc("a"), 0, callback);  // 占住合并线程，后面的请求都在队列中等待
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        dao.updateMaxIdAsync(alloc("b"), 30, callback);
+        dao.updateMaxIdAsync(alloc("c"), 10, callback);
+        dao.updateMaxIdAsync(alloc("d"), 20, callback);
+        dao.updateMaxIdAsync(alloc("e"), 5, callback);
+        Assert.assertEquals(1, failed.get());
+        Assert.assertEquals(1, dao.getRejectedCount());
+        blocked.countDown();
+        Assert.assertTrue(done.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("a", "c", "d", "b"), order);
+    }
+
+    private static LeafAlloc alloc(String tag) {
+        LeafAlloc leafAlloc = new LeafAlloc();
+        leafAlloc.setKey(tag);
+        return leafAlloc;
+    }
+}
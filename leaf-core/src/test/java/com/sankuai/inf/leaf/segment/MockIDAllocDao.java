@@ -0,0 +1,190 @@
+package com.sankuai.inf.leaf.segment;
+
+import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 内存中的 leaf_alloc 表，用于不依赖数据库的测试和 benchmark
+ */
+public class MockIDAllocDao implements IDAllocDao {
+    private final Map<String, LeafAlloc> table = new ConcurrentHashMap<String, LeafAlloc>();
+    private volatile long delayMillis;   // 模拟 DB 的响应时间
+    private volatile boolean down;  // 模拟 DB 不可用，号段更新全部抛出异常
+    private final AtomicInteger batchCount = new AtomicInteger();
+    private final AtomicInteger updateCount = new AtomicInteger();  // 单个 tag 的号段更新次数
+    private final AtomicInteger getAllTagsCount = new AtomicInteger();
+    private final Map<String, Long> createTimes = new ConcurrentHashMap<String, Long>();  // 模拟 create_time 列
+    private final AtomicLong tagsVersion = new AtomicLong();    // 模拟 leaf_alloc_tags_version 表
+
+    public MockIDAllocDao addTag(String tag, int step) {
+        return addTag(tag, step, 0);
+    }
+
+    public MockIDAllocDao addTag(String tag, int step, int chunkSize) {
+        LeafAlloc leafAlloc = new LeafAlloc();
+        leafAlloc.setKey(tag);
+        leafAlloc.setMaxId(1);
+        leafAlloc.setStep(step);
+        leafAlloc.setChunkSize(chunkSize);
+        table.put(tag, leafAlloc);
+        createTimes.put(tag, System.currentTimeMillis());
+        tagsVersion.incrementAndGet();
+        return this;
+    }
+
+    public MockIDAllocDao removeTag(String tag) {
+        table.remove(tag);
+        createTimes.remove(tag);
+        tagsVersion.incrementAndGet();
+        return this;
+    }
+
+    public MockIDAllocDao setRingDepth(String tag, int ringDepth) {
+        table.get(tag).setRingDepth(ringDepth);
+        return this;
+    }
+
+    public MockIDAllocDao setStepBounds(String tag, int minStep, int maxStep) {
+        table.get(tag).setMinStep(minStep);
+        table.get(tag).setMaxStep(maxStep);
+        return this;
+    }
+
+    public MockIDAllocDao setDown(boolean down) {
+        this.down = down;
+        return this;
+    }
+
+    public MockIDAllocDao setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+        return this;
+    }
+
+    @Override
+    public List<LeafAlloc> getAllLeafAllocs() {
+        List<LeafAlloc> result = new ArrayList<LeafAlloc>();
+        for (LeafAlloc leafAlloc : table.values()) {
+            result.add(copy(leafAlloc));
+        }
+        return result;
+    }
+
+    @Override
+    public LeafAlloc updateMaxIdAndGetLeafAlloc(String tag) {
+        delay();
+        updateCount.incrementAndGet();
+        LeafAlloc leafAlloc = table.get(tag);
+        if (leafAlloc == null) {    // 和 DB 一样，tag 不存在时返回 null
+            return null;
+        }
+        synchronized (leafAlloc) {
+            leafAlloc.setMaxId(leafAlloc.getMaxId() + leafAlloc.getStep());
+            return copy(leafAlloc);
+        }
+    }
+
+    @Override
+    public LeafAlloc updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc temp) {
+        delay();
+        updateCount.incrementAndGet();
+        LeafAlloc leafAlloc = table.get(temp.getKey());
+        if (leafAlloc == null) {
+            return null;
+        }
+        synchronized (leafAlloc) {
+            leafAlloc.setMaxId(leafAlloc.getMaxId() + temp.getStep());
+            return copy(leafAlloc);
+        }
+    }
+
+    @Override
+    public List<LeafAlloc> updateMaxIdAndGetLeafAllocs(List<LeafAlloc> leafAllocs) {
+        delay();
+        batchCount.incrementAndGet();
+        List<LeafAlloc> result = new ArrayList<LeafAlloc>();
+        for (LeafAlloc temp : leafAllocs) {
+            LeafAlloc leafAlloc = table.get(temp.getKey());
+            if (leafAlloc == null) {
+                continue;
+            }
+            synchronized (leafAlloc) {
+                leafAlloc.setMaxId(leafAlloc.getMaxId() + (temp.getStep() > 0 ? temp.getStep() : leafAlloc.getStep()));
+                result.add(copy(leafAlloc));
+            }
+        }
+        return result;
+    }
+
+    public int getBatchCount() {
+        return batchCount.get();
+    }
+
+    public int getUpdateCount() {
+        return updateCount.get();
+    }
+
+    @Override
+    public List<String> getAllTags() {
+        getAllTagsCount.incrementAndGet();
+        return new ArrayList<String>(table.keySet());
+    }
+
+    @Override
+    public List<String> getTagsCreatedSince(Date since) {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : createTimes.entrySet()) {
+            if (entry.getValue() >= since.getTime()) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Date getCurrentTime() {
+        return new Date();
+    }
+
+    @Override
+    public long getTagsVersion() {
+        return tagsVersion.get();
+    }
+
+    public int getAllTagsCount() {
+        return getAllTagsCount.get();
+    }
+
+    private void delay() {
+        if (down) {
+            throw new IllegalStateException("db is down");
+        }
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private LeafAlloc copy(LeafAlloc leafAlloc) {
+        LeafAlloc result = new LeafAlloc();
+        result.setKey(leafAlloc.getKey());
+        result.setMaxId(leafAlloc.getMaxId());
+        result.setStep(leafAlloc.getStep());
+        result.setUpdateTime(leafAlloc.getUpdateTime());
+        result.setChunkSize(leafAlloc.getChunkSize());
+        result.setRingDepth(leafAlloc.getRingDepth());
+        result.setMinStep(leafAlloc.getMinStep());
+        result.setMaxStep(leafAlloc.getMaxStep());
+        return result;
+    }
+}
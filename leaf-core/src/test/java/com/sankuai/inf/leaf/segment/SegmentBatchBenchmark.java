@@ -0,0 +1,51 @@
+package com.sankuai.inf.leaf.segment;
+
+import com.sankuai.inf.leaf.common.BatchResult;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量获取 count 个 id 与调用 count 次 get(key) 的对比
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentBatchBenchmark {
+    private static final String KEY = "leaf-segment-test";
+
+    @Param({"10", "100", "1000"})
+    int count;
+
+    SegmentIDGenImpl idGen;
+
+    @Setup
+    public void setup() {
+        idGen = new SegmentIDGenImpl();
+        idGen.setDao(new MockIDAllocDao().addTag(KEY, 100000));
+        idGen.init();
+    }
+
+    @Benchmark
+    public void singleCalls(Blackhole bh) {
+        for (int i = 0; i < count; i++) {
+            bh.consume(idGen.get(KEY));
+        }
+    }
+
+    @Benchmark
+    public BatchResult batchCall() {
+        return idGen.get(KEY, count);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SegmentBatchBenchmark.class.getSimpleName()).build()).run();
+    }
+}
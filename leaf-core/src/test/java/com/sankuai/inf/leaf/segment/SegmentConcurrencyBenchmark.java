@@ -0,0 +1,66 @@
+package com.sankuai.inf.leaf.segment;
+
+import com.sankuai.inf.leaf.common.Result;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 单个热点 key 在 1~64 个线程下的取号吞吐，striped 为开启条带模式的 key，readLocked 模拟的是之前每次取号都要获取读锁的做法
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentConcurrencyBenchmark {
+    private static final String KEY = "leaf-segment-test";
+    private static final String STRIPED_KEY = "leaf-segment-striped";
+
+    SegmentIDGenImpl idGen;
+    ReadWriteLock lock = new ReentrantReadWriteLock();
+    AtomicLong value = new AtomicLong();
+
+    @Setup
+    public void setup() {
+        idGen = new SegmentIDGenImpl();
+        idGen.setDao(new MockIDAllocDao().addTag(KEY, 1000000).addTag(STRIPED_KEY, 1000000, 256));
+        idGen.init();
+    }
+
+    @Benchmark
+    public Result lockFree() {
+        return idGen.get(KEY);
+    }
+
+    @Benchmark
+    public Result striped() {
+        return idGen.get(STRIPED_KEY);
+    }
+
+    @Benchmark
+    public long readLocked() {
+        lock.readLock().lock();
+        try {
+            return value.getAndIncrement();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32, 64}) {
+            new Runner(new OptionsBuilder()
+                    .include(SegmentConcurrencyBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.sankuai.inf.leaf.segment;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import com.alibaba.druid.pool.DruidDataSource;
+import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.dao.impl.IDAllocDaoImpl;
+import com.sankuai.inf.leaf.segment.dao.impl.LastInsertIdIDAllocDaoImpl;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个节点同时刷新同一个 tag 时 DB 的号段分配吞吐，在嵌入式 MariaDB 上对比 UPDATE + SELECT + COMMIT 和一条 LAST_INSERT_ID UPDATE，
+ * 瓶颈在于 leaf_alloc 的行锁持有时间
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class SegmentDaoBenchmark {
+    private static final String KEY = "leaf-segment-test";
+
+    @Param({"default", "last_insert_id"})
+    String dao;
+
+    DB db;
+    DruidDataSource dataSource;
+    IDAllocDao idAllocDao;
+    LeafAlloc customStep;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+        config.setPort(0);
+        db = DB.newEmbeddedDB(config.build());
+        db.start();
+        db.createDB("leaf");
+        dataSource = new DruidDataSource();
+        dataSource.setUrl(config.getURL("leaf"));
+        dataSource.setUsername("root");
+        dataSource.setPassword("");
+        dataSource.setMaxActive(32);
+        dataSource.init();
+        Connection connection = dataSource.getConnection();
+        try {
+            Statement statement = connection.createStatement();
+            statement.execute("CREATE TABLE leaf_alloc (biz_tag varchar(128) NOT NULL DEFAULT '', max_id bigint(20) NOT NULL DEFAULT '1', "
+                    + "step int(11) NOT NULL, chunk_size int(11) NOT NULL DEFAULT '0', ring_depth int(11) NOT NULL DEFAULT '2', "
+                    + "min_step int(11) NOT NULL DEFAULT '0', max_step int(11) NOT NULL DEFAULT '0', description varchar(256) DEFAULT NULL, "
+                    + "update_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, create_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP, "
+                    + "PRIMARY KEY (biz_tag)) ENGINE=InnoDB");
+            statement.execute("INSERT INTO leaf_alloc(biz_tag, max_id, step) VALUES('" + KEY + "', 1, 1000)");
+        } finally {
+            connection.close();
+        }
+        idAllocDao = "default".equals(dao) ? new IDAllocDaoImpl(dataSource) : new LastInsertIdIDAllocDaoImpl(dataSource);
+        customStep = new LeafAlloc();
+        customStep.setKey(KEY);
+        customStep.setStep(2000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dataSource.close();
+        db.stop();
+    }
+
+    @Benchmark
+    public LeafAlloc updateMaxId() {
+        return idAllocDao.updateMaxIdAndGetLeafAlloc(KEY);
+    }
+
+    @Benchmark
+    public LeafAlloc updateMaxIdByCustomStep() {
+        return idAllocDao.updateMaxIdByCustomStepAndGetLeafAlloc(customStep);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SegmentDaoBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,361 @@
+package com.sankuai.inf.leaf.segment;
+
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.IdRange;
+import com.sankuai.inf.leaf.common.Result;
+import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.segment.model.Segment;
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SegmentIDGenImplTest {
+    private static final String KEY = "leaf-segment-test";
+    private static final String STRIPED_KEY = "leaf-segment-striped";
+    SegmentIDGenImpl idGen;
+
+    @Before
+    public void before() {
+        idGen = new SegmentIDGenImpl();
+        idGen.setDao(new MockIDAllocDao().addTag(KEY, 100).addTag(STRIPED_KEY, 1000, 64));
+        idGen.setWaitTimeout(1000); // 核数少的机器上装载线程可能被取号线程挤占超过默认的 10ms，这里只关心 id 是否唯一
+        idGen.init();
+    }
+
+    @Test
+    public void testGetIdsAcrossSegments() {
+        Set<Long> ids = new HashSet<Long>();
+        for (int i = 0; i < 30; i++) {
+            Result r = idGen.get(KEY);
+            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+            Assert.assertTrue(ids.add(r.getId()));
+        }
+        for (int i = 0; i < 20; i++) {
+            BatchResult r = idGen.get(KEY, 150);    // 每次都会跨越 segment
+            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+            Assert.assertEquals(150, r.getCount());
+            for (IdRange range : r.getRanges()) {
+                for (long id = range.getStart(); id < range.getStart() + range.getCount(); id++) {
+                    Assert.assertTrue(ids.add(id));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentGetId() throws InterruptedException {
+        assertConcurrentUnique(KEY);
+    }
+
+    @Test
+    public void testConcurrentGetIdFromStripe() throws InterruptedException {
+        assertConcurrentUnique(STRIPED_KEY);
+    }
+
+    private void assertConcurrentUnique(final String key) throws InterruptedException {
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final AtomicInteger failed = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        Result r = idGen.get(key);
+                        if (r.getStatus() != Status.SUCCESS || !ids.add(r.getId())) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, failed.get());
+        Assert.assertEquals(80000, ids.size());
+    }
+
+    @Test
+    public void testWaitForSlowLoad() {
+        SegmentIDGenImpl slowIdGen = new SegmentIDGenImpl();
+        slowIdGen.setDao(new MockIDAllocDao().addTag(KEY, 10).setDelayMillis(50));
+        slowIdGen.setWaitTimeout(1000);
+        slowIdGen.init();
+        for (int i = 0; i < 100; i++) { // 每个 segment 都会在下一个 segment 装载完成之前被用完
+            Assert.assertEquals(Status.SUCCESS, slowIdGen.get(KEY).getStatus());
+        }
+        Assert.assertTrue(slowIdGen.getCache().get(KEY).getRingDepth() > SegmentBuffer.DEFAULT_RING_DEPTH);  // 等待过装载，环被自动加深
+    }
+
+    @Test
+    public void testGrowConfiguredRing() {
+        SegmentBuffer buffer = new SegmentBuffer();
+        buffer.setConfiguredDepth(4);
+        Assert.assertFalse(buffer.growDepth(SegmentBuffer.DEFAULT_RING_DEPTH));  // 过期的深度不能加深
+        Assert.assertTrue(buffer.growDepth(buffer.getRingDepth()));
+        Assert.assertEquals(5, buffer.getRingDepth());
+        Assert.assertFalse(buffer.growDepth(4));    // 同一次等待中只加深一次
+        buffer.setConfiguredDepth(2);   // 配置调小后保留已经加深的深度
+        Assert.assertEquals(5, buffer.getRingDepth());
+        buffer.setConfiguredDepth(SegmentBuffer.MAX_RING_DEPTH);
+        Assert.assertFalse(buffer.growDepth(buffer.getRingDepth()));
+        Assert.assertEquals(SegmentBuffer.MAX_RING_DEPTH, buffer.getRingDepth());
+    }
+
+    @Test
+    public void testFillRing() throws InterruptedException {
+        SegmentIDGenImpl ringIdGen = new SegmentIDGenImpl();
+        ringIdGen.setDao(new MockIDAllocDao().addTag(KEY, 100).setRingDepth(KEY, 4));
+        ringIdGen.init();
+        for (int i = 0; i < 20; i++) {  // 用掉 10% 以上后开始预先装载
+            Assert.assertEquals(Status.SUCCESS, ringIdGen.get(KEY).getStatus());
+        }
+        SegmentBuffer buffer = ringIdGen.getCache().get(KEY);
+        for (int i = 0; i < 100 && buffer.getSegments().size() < 4; i++) {
+            Thread.sleep(10);
+        }
+        List<Segment> segments = buffer.getSegments();
+        Assert.assertEquals(4, segments.size());
+        for (int i = 1; i < segments.size(); i++) { // 环中的号段依次衔接
+            Assert.assertTrue(segments.get(i).getValue().get() >= segments.get(i - 1).getMax());
+        }
+        long last = -1;
+        for (int i = 0; i < 300; i++) { // 依次用完环中的号段，id 保持递增
+            Result r = ringIdGen.get(KEY);
+            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+            Assert.assertTrue(r.getId() > last);
+            last = r.getId();
+        }
+    }
+
+    @Test
+    public void testStepFollowsConsumeRate() throws InterruptedException {
+        SegmentIDGenImpl stepIdGen = new SegmentIDGenImpl();
+        stepIdGen.setDao(new MockIDAllocDao().addTag(KEY, 100).setStepBounds(KEY, 10, 5000)
+                .addTag(STRIPED_KEY, 100).setStepBounds(STRIPED_KEY, 10, 5000));
+        stepIdGen.setWaitTimeout(1000);
+        stepIdGen.setSegmentDuration(1000);
+        stepIdGen.init();
+        for (int i = 0; i < 100000; i++) {  // 热点 tag 的步长增长到 max_step
+            Assert.assertEquals(Status.SUCCESS, stepIdGen.get(KEY).getStatus());
+        }
+        Assert.assertEquals(5000, stepIdGen.getCache().get(KEY).getStep());
+        stepIdGen.setSegmentDuration(1);
+        for (int i = 0; i < 300; i++) { // 每毫秒最多消耗一个 id 的冷门 tag 退回 min_step
+            Assert.assertEquals(Status.SUCCESS, stepIdGen.get(STRIPED_KEY).getStatus());
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(10, stepIdGen.getCache().get(STRIPED_KEY).getStep());
+    }
+
+    @Test
+    public void testSyncTags() {
+        MockIDAllocDao dao = new MockIDAllocDao().addTag(KEY, 100).addTag(STRIPED_KEY, 100);
+        SegmentIDGenImpl syncIdGen = new SegmentIDGenImpl();
+        syncIdGen.setDao(dao);
+        syncIdGen.init();
+        int fullScans = dao.getAllTagsCount();
+        dao.addTag("leaf-segment-new", 100).removeTag(STRIPED_KEY);
+        syncIdGen.syncCacheFromDb();    // 增量同步只加入新增的 tag，不做全量查询
+        Assert.assertTrue(syncIdGen.getCache().containsKey("leaf-segment-new"));
+        Assert.assertTrue(syncIdGen.getCache().containsKey(STRIPED_KEY));
+        Assert.assertEquals(fullScans, dao.getAllTagsCount());
+        for (int i = 0; i < 9; i++) {   // 每 10 轮做一次全量同步，移除已删除的 tag
+            syncIdGen.syncCacheFromDb();
+        }
+        Assert.assertFalse(syncIdGen.getCache().containsKey(STRIPED_KEY));
+        Assert.assertEquals(fullScans + 1, dao.getAllTagsCount());
+    }
+
+    @Test
+    public void testSyncTagsByVersion() {
+        MockIDAllocDao dao = new MockIDAllocDao().addTag(KEY, 100).addTag(STRIPED_KEY, 100);
+        SegmentIDGenImpl syncIdGen = new SegmentIDGenImpl();
+        syncIdGen.setDao(dao);
+        syncIdGen.setTagsVersionEnabled(true);
+        syncIdGen.init();
+        syncIdGen.syncCacheFromDb();
+        int fullScans = dao.getAllTagsCount();
+        syncIdGen.syncCacheFromDb();    // 版本号没有变化，不查询 tag
+        Assert.assertEquals(fullScans, dao.getAllTagsCount());
+        dao.removeTag(STRIPED_KEY);
+        syncIdGen.syncCacheFromDb();
+        Assert.assertFalse(syncIdGen.getCache().containsKey(STRIPED_KEY));
+        Assert.assertEquals(fullScans + 1, dao.getAllTagsCount());
+    }
+
+    @Test
+    public void testGetIdsIllegal() {
+        Assert.assertEquals(Status.EXCEPTION, idGen.get(KEY, 0).getStatus());
+        Assert.assertEquals(Status.EXCEPTION, idGen.get("no-such-key", 10).getStatus());
+    }
+
+    @Test
+    public void testLazyLoad() {
+        SegmentIDGenImpl lazyIdGen = new SegmentIDGenImpl();
+        lazyIdGen.setDao(new MockIDAllocDao().addTag(KEY, 100).addTag(STRIPED_KEY, 100));
+        lazyIdGen.setLazyLoad(true);
+        lazyIdGen.init();
+        Assert.assertTrue(lazyIdGen.getCache().isEmpty());
+        Assert.assertEquals(Status.SUCCESS, lazyIdGen.get(KEY).getStatus());
+        Assert.assertTrue(lazyIdGen.getCache().containsKey(KEY));
+        Assert.assertFalse(lazyIdGen.getCache().containsKey(STRIPED_KEY));
+        Assert.assertEquals(Status.EXCEPTION, lazyIdGen.get("no-such-key").getStatus());
+        Assert.assertFalse(lazyIdGen.getCache().containsKey("no-such-key"));
+    }
+
+    @Test
+    public void testLazyLoadMissingTag() throws InterruptedException {
+        MockIDAllocDao dao = new MockIDAllocDao().addTag(KEY, 100);
+        SegmentIDGenImpl lazyIdGen = new SegmentIDGenImpl();
+        lazyIdGen.setDao(dao);
+        lazyIdGen.setLazyLoad(true);
+        lazyIdGen.setMissingTagTtl(100);
+        lazyIdGen.init();
+        Assert.assertEquals(-2, lazyIdGen.get("no-such-key").getId());
+        Assert.assertEquals(-2, lazyIdGen.get("no-such-key").getId());
+        Assert.assertEquals(1, dao.getUpdateCount());   // 第二次请求命中不存在的 tag 的缓存，不再访问 DB
+        dao.addTag("no-such-key", 100);
+        Thread.sleep(150);
+        Assert.assertEquals(Status.SUCCESS, lazyIdGen.get("no-such-key").getStatus());  // 过期后重新访问 DB
+    }
+
+    @Test
+    public void testLazyLoadDeletedTag() throws InterruptedException {
+        MockIDAllocDao dao = new MockIDAllocDao().addTag(KEY, 100);
+        SegmentIDGenImpl lazyIdGen = new SegmentIDGenImpl();
+        lazyIdGen.setDao(dao);
+        lazyIdGen.setLazyLoad(true);
+        lazyIdGen.setWaitTimeout(1000);
+        lazyIdGen.init();
+        Assert.assertEquals(Status.SUCCESS, lazyIdGen.get(KEY).getStatus());
+        dao.removeTag(KEY);
+        long id = 0;
+        for (int i = 0; i < 200 && id != -2; i++) { // 当前号段用完前预加载发现 tag 已删除，buffer 被移除
+            id = lazyIdGen.get(KEY).getId();
+            if (id < 0) {
+                Thread.sleep(10);
+            }
+        }
+        Assert.assertEquals(-2, id);
+        Assert.assertFalse(lazyIdGen.getCache().containsKey(KEY));
+        int updateCount = dao.getUpdateCount();
+        Assert.assertEquals(-2, lazyIdGen.get(KEY).getId());
+        Assert.assertEquals(updateCount, dao.getUpdateCount()); // 记为不存在的 tag，不再访问 DB
+    }
+
+    @Test
+    public void testEvictIdleBuffers() throws InterruptedException {
+        SegmentIDGenImpl lazyIdGen = new SegmentIDGenImpl();
+        lazyIdGen.setDao(new MockIDAllocDao().addTag("a", 100).addTag("b", 100).addTag("c", 100));
+        lazyIdGen.setLazyLoad(true);
+        lazyIdGen.setIdleTtl(0);
+        lazyIdGen.init();
+        lazyIdGen.get("a");
+        lazyIdGen.evictIdleBuffers();   // 本轮被访问过的 buffer 不会被淘汰
+        Assert.assertTrue(lazyIdGen.getCache().containsKey("a"));
+        Thread.sleep(10);
+        lazyIdGen.evictIdleBuffers();
+        Assert.assertTrue(lazyIdGen.getCache().isEmpty());
+
+        lazyIdGen.setIdleTtl(600);
+        lazyIdGen.setMaxTags(2);
+        lazyIdGen.get("a");
+        lazyIdGen.evictIdleBuffers();
+        Thread.sleep(10);
+        lazyIdGen.get("b");
+        lazyIdGen.get("c");
+        lazyIdGen.evictIdleBuffers();   // 超过 maxTags，淘汰最久没有访问的 a
+        Assert.assertEquals(2, lazyIdGen.getCache().size());
+        Assert.assertFalse(lazyIdGen.getCache().containsKey("a"));
+        Assert.assertEquals(Status.SUCCESS, lazyIdGen.get("a").getStatus());
+    }
+
+    @Test
+    public void testWarmUp() throws InterruptedException {
+        Assert.assertTrue(idGen.isReady());    // 没有开启预热时 init 之后立即就绪
+        SegmentIDGenImpl warmIdGen = new SegmentIDGenImpl();
+        warmIdGen.setDao(new MockIDAllocDao().addTag("a", 100).addTag("b", 100).addTag("c", 100).setDelayMillis(50));
+        warmIdGen.setWarmUpThreads(2);
+        warmIdGen.setWarmUpTags(new HashSet<String>(Arrays.asList("a", "b")));
+        warmIdGen.init();
+        Assert.assertFalse(warmIdGen.isReady());
+        Assert.assertTrue(warmIdGen.awaitReady(5000));
+        for (String tag : Arrays.asList("a", "b")) {
+            SegmentBuffer buffer = warmIdGen.getCache().get(tag);
+            Assert.assertTrue(buffer.isInitOk());
+            Assert.assertEquals(1, buffer.getReadyCount());
+        }
+        Assert.assertFalse(warmIdGen.getCache().get("c").isInitOk());
+    }
+
+    @Test
+    public void testReserveWhileDbDown() throws InterruptedException {
+        MockIDAllocDao dao = new MockIDAllocDao().addTag(KEY, 100).setStepBounds(KEY, 100, 100);
+        SegmentIDGenImpl reserveIdGen = new SegmentIDGenImpl();
+        reserveIdGen.setDao(dao);
+        reserveIdGen.setWaitTimeout(1000);
+        reserveIdGen.setReserveMinutes(1);
+        reserveIdGen.init();
+        Set<Long> ids = new HashSet<Long>();
+        SegmentBuffer buffer = null;
+        for (int i = 0; i < 100000 && (buffer == null || buffer.getReserve() == null); i++) {  // 采样到消耗速率后装载线程划出应急号段
+            Assert.assertTrue(ids.add(reserveIdGen.get(KEY).getId()));
+            buffer = reserveIdGen.getCache().get(KEY);
+        }
+        Segment reserve = buffer.getReserve();
+        Assert.assertNotNull(reserve);
+        Assert.assertEquals(100, reserve.getStep());    // 不超过 tag 的最大步长
+        dao.setDown(true);
+        int failures = 0;
+        for (int i = 0; i < 1000; i++) {   // 连续装载失败 3 次后切换到应急号段，之后继续正常发号
+            Result r = reserveIdGen.get(KEY);
+            if (r.getStatus() == Status.SUCCESS) {
+                Assert.assertTrue(ids.add(r.getId()));
+            } else {
+                failures++;
+            }
+        }
+        Assert.assertTrue(failures < 1000);
+        Assert.assertNull(buffer.getReserve());
+        Assert.assertTrue(buffer.getCurrent() == reserve || buffer.getCurrent().getNext() == reserve);
+    }
+
+    @Test
+    public void testStaleReserveReclaimed() throws InterruptedException {
+        MockIDAllocDao dao = new MockIDAllocDao().addTag(KEY, 100).setStepBounds(KEY, 100, 100);
+        SegmentIDGenImpl reserveIdGen = new SegmentIDGenImpl();
+        reserveIdGen.setDao(dao);
+        reserveIdGen.setWaitTimeout(1000);
+        reserveIdGen.setReserveMinutes(1);
+        reserveIdGen.init();
+        SegmentBuffer buffer = null;
+        for (int i = 0; i < 100000 && (buffer == null || buffer.getReserve() == null); i++) {
+            Assert.assertEquals(Status.SUCCESS, reserveIdGen.get(KEY).getStatus());
+            buffer = reserveIdGen.getCache().get(KEY);
+        }
+        Segment first = buffer.getReserve();
+        Assert.assertNotNull(first);
+        long last = 0;
+        for (int i = 0; i < 1000; i++) {    // 之后又装载了多个 segment，旧的应急号段被丢弃重新划取
+            last = reserveIdGen.get(KEY).getId();
+        }
+        for (int i = 0; i < 100 && (buffer.getReserve() == null || buffer.getReserve() == first); i++) {
+            Thread.sleep(10);
+        }
+        Segment reserve = buffer.getReserve();
+        Assert.assertNotSame(first, reserve);
+        Assert.assertTrue(reserve.getMax() >= last - 2 * 100 - reserve.getStep());  // 切换过去时最多回退一个步长加上应急号段的大小
+    }
+}
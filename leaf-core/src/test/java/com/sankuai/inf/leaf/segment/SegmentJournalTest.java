@@ -0,0 +1,112 @@
+package com.sankuai.inf.leaf.segment;
+
+import com.sankuai.inf.leaf.common.Result;
+import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import com.sankuai.inf.leaf.segment.model.Segment;
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class SegmentJournalTest {
+    private static final String KEY = "leaf-segment-test";
+    private File file;
+
+    @Before
+    public void before() throws IOException {
+        file = File.createTempFile("leaf-segment", ".journal");
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    @Test
+    public void testLeaseAndReopen() throws IOException {
+        SegmentJournal journal = new SegmentJournal(file, 16);
+        Segment segment = new Segment(new SegmentBuffer());
+        segment.setMax(1600);
+        segment.setStep(1600);
+        journal.lease(KEY, segment, 10);    // 租约推进 step 的 1/16
+        Assert.assertEquals(110, segment.getLeased());
+        journal.lease(KEY, segment, 50);    // 没有超过租约，不写日志
+        Assert.assertEquals(110, segment.getLeased());
+        try {
+            new SegmentJournal(file, 16);
+            Assert.fail("journal should be locked");
+        } catch (IOException expected) {
+        }
+        journal.close();
+        journal = new SegmentJournal(file, 16);
+        SegmentJournal.Entry entry = journal.getEntries().get(KEY);
+        Assert.assertEquals(1600, entry.getMax());
+        Assert.assertEquals(110, entry.getLeased());
+        journal.close();
+        journal = new SegmentJournal(file, 32); // 容量变化时丢弃原有内容
+        Assert.assertTrue(journal.getEntries().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void testRestart() throws IOException, InterruptedException {
+        MockIDAllocDao dao = new MockIDAllocDao().addTag(KEY, 1600);
+        SegmentIDGenImpl idGen = new SegmentIDGenImpl();
+        idGen.setDao(dao);
+        idGen.setJournal(new SegmentJournal(file, 16));
+        idGen.init();
+        long last = 0;
+        for (int i = 0; i < 300; i++) {
+            last = idGen.get(KEY).getId();
+        }
+        idGen.getJournal().close(); // 模拟进程崩溃，内存中的 segment 全部丢失
+        while (idGen.getCache().get(KEY).getThreadRunning().get()) {    // 等待预加载结束，之后 DB 不再变化
+            Thread.sleep(10);
+        }
+        long maxId = maxId(dao);
+
+        SegmentIDGenImpl restarted = new SegmentIDGenImpl();
+        restarted.setDao(dao);
+        restarted.setJournal(new SegmentJournal(file, 16));
+        restarted.init();
+        Assert.assertTrue(restarted.getCache().get(KEY).isInitOk());
+        Result result = restarted.get(KEY);
+        Assert.assertEquals(Status.SUCCESS, result.getStatus());
+        Assert.assertTrue(result.getId() > last);
+        Assert.assertTrue(result.getId() <= last + 1 + 1600 / 16);  // 最多浪费一个租约
+        Assert.assertEquals(maxId, maxId(dao)); // 没有从 DB 装载新的号段
+        restarted.getJournal().close();
+    }
+
+    @Test
+    public void testDiscardForeignJournal() throws IOException {
+        MockIDAllocDao dao = new MockIDAllocDao().addTag(KEY, 1600);
+        SegmentIDGenImpl idGen = new SegmentIDGenImpl();
+        idGen.setDao(dao);
+        idGen.setJournal(new SegmentJournal(file, 16));
+        idGen.init();
+        idGen.get(KEY);
+        idGen.getJournal().close();
+
+        SegmentIDGenImpl other = new SegmentIDGenImpl();    // 日志中的 max 超过了新库的 max_id
+        other.setDao(new MockIDAllocDao().addTag(KEY, 1600));
+        other.setJournal(new SegmentJournal(file, 16));
+        other.init();
+        Assert.assertFalse(other.getCache().get(KEY).isInitOk());
+        other.getJournal().close();
+    }
+
+    private long maxId(MockIDAllocDao dao) {
+        for (LeafAlloc leafAlloc : dao.getAllLeafAllocs()) {
+            if (KEY.equals(leafAlloc.getKey())) {
+                return leafAlloc.getMaxId();
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,99 @@
+package com.sankuai.inf.leaf.segment;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SegmentLoaderTest {
+
+    @Test
+    public void testOrderAndBackPressure() throws InterruptedException {
+        SegmentLoader loader = new SegmentLoader(1, 3);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        loader.submit(new SegmentLoader.LoadTask(0) {   // 占住唯一的装载线程，后面的任务都进入队列
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        started.await();
+        final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch done = new CountDownLatch(3);
+        for (long deadline : new long[]{30, 10, 20, 40}) {
+            boolean submitted = loader.submit(new SegmentLoader.LoadTask(deadline) {
+                @Override
+                public void run() {
+                    order.add(getDeadline());
+                    done.countDown();
+                }
+            });
+            Assert.assertEquals(deadline != 40, submitted); // 队列满了之后直接拒绝
+        }
+        Assert.assertEquals(3, loader.getQueueDepth());
+        Assert.assertEquals(1, loader.getRejectedCount());
+        blocked.countDown();
+        Assert.assertTrue(done.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(10L, 20L, 30L), order);   // 越早用完的 buffer 越先装载
+        loader.shutdown();
+    }
+
+    // 并发提交时排队的任务数也不会超过容量
+    @Test
+    public void testConcurrentSubmit() throws InterruptedException {
+        final SegmentLoader loader = new SegmentLoader(1, 10);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        loader.submit(new SegmentLoader.LoadTask(0) {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        started.await();
+        final AtomicInteger submitted = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        if (loader.submit(new SegmentLoader.LoadTask(j) {
+                            @Override
+                            public void run() {
+                            }
+                        })) {
+                            submitted.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(10, submitted.get());
+        Assert.assertEquals(10, loader.getQueueDepth());
+        Assert.assertEquals(790, loader.getRejectedCount());
+        blocked.countDown();
+        loader.shutdown();
+    }
+}
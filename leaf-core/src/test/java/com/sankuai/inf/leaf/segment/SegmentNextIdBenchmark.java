@@ -0,0 +1,48 @@
+package com.sankuai.inf.leaf.segment;
+
+import com.sankuai.inf.leaf.common.Result;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比 get(key) 和 nextId(key) 每次取号分配的内存，看 gc.alloc.rate.norm：nextId 应该接近 0 B/op，
+ * get 多出一个 Result；步长足够大，测量期间基本不发生 segment 切换
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class SegmentNextIdBenchmark {
+    private static final String KEY = "leaf-segment-test";
+
+    SegmentIDGenImpl idGen;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        idGen = new SegmentIDGenImpl();
+        idGen.setDao(new MockIDAllocDao().addTag(KEY, 100000000));
+        idGen.init();
+    }
+
+    @Benchmark
+    public Result get() {
+        return idGen.get(KEY);
+    }
+
+    @Benchmark
+    public long nextId() {
+        return idGen.nextId(KEY);
+    }
+
+    public static void main(String[] args) throws RunnerException {    // 等价于命令行的 -prof gc
+        new Runner(new OptionsBuilder().include(SegmentNextIdBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
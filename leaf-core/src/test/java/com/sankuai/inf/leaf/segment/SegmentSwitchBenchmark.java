@@ -0,0 +1,46 @@
+package com.sankuai.inf.leaf.segment;
+
+import com.sankuai.inf.leaf.common.Result;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DB 响应较慢、segment 频繁被用完时的取号延迟分布（看 p0.99 和 p0.999），每次 iteration 都重新构建 IDGen，
+ * 避免步长被动态调大之后不再发生 segment 切换
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+@Fork(1)
+public class SegmentSwitchBenchmark {
+    private static final String KEY = "leaf-segment-test";
+
+    @Param({"5"})
+    long dbDelayMillis;
+
+    SegmentIDGenImpl idGen;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        idGen = new SegmentIDGenImpl();
+        idGen.setWaitTimeout(100);
+        idGen.setDao(new MockIDAllocDao().addTag(KEY, 1000).setDelayMillis(dbDelayMillis));
+        idGen.init();
+    }
+
+    @Benchmark
+    public Result get() {
+        return idGen.get(KEY);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SegmentSwitchBenchmark.class.getSimpleName()).build()).run();
+    }
+}
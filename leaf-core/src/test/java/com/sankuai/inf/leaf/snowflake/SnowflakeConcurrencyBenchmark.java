@@ -0,0 +1,60 @@
+package com.sankuai.inf.leaf.snowflake;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * snowflake 在 1~64 个线程下的取号吞吐，lockFree 为 CAS 推进打包状态的实现，synchronizedBaseline 模拟的是之前
+ * 对整个生成器加锁的做法（同样的时间戳和序列号逻辑）；单机每毫秒最多 4096 个 id，线程足够多时两者都会被序列号上限卡住
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnowflakeConcurrencyBenchmark {
+    SnowflakeIDGenImpl idGen;
+    long lastTimestamp = -1;
+    long sequence;
+
+    @Setup
+    public void setup() {
+        idGen = new SnowflakeIDGenImpl(1);
+    }
+
+    @Benchmark
+    public long lockFree() {
+        return idGen.nextId("a");
+    }
+
+    @Benchmark
+    public synchronized long synchronizedBaseline() {
+        long timestamp = System.currentTimeMillis();
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & 4095;
+            if (sequence == 0) {
+                while (timestamp <= lastTimestamp) {
+                    timestamp = System.currentTimeMillis();
+                }
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = timestamp;
+        return (timestamp << 22) | (1 << 12) | sequence;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32, 64}) {
+            new Runner(new OptionsBuilder()
+                    .include(SnowflakeConcurrencyBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
@@ -1,11 +1,22 @@
 package com.sankuai.inf.leaf.snowflake;
 
 import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.IdRange;
 import com.sankuai.inf.leaf.common.PropertyFactory;
 import com.sankuai.inf.leaf.common.Result;
+import com.sankuai.inf.leaf.snowflake.model.SnowflakeId;
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class SnowflakeIDGenImplTest {
     @Test
@@ -18,4 +29,226 @@ public class SnowflakeIDGenImplTest {
             System.out.println(r);
         }
     }
+
+    // 多个线程同时单个取号和批量取号，所有 id 都不重复，每个线程拿到的 id 单调递增
+    @Test
+    public void testConcurrentUnique() throws InterruptedException {
+        final SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(1);
+        final int threads = 8;
+        final List<Long>[] ids = new List[threads];
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final List<Long> list = ids[t] = new ArrayList<Long>();
+            final boolean batch = t % 2 == 0;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long last = -1;
+                        for (int i = 0; i < 20000; i++) {
+                            if (batch && i % 100 == 0) {
+                                BatchResult result = idGen.get("a", 50);
+                                Assert.assertEquals(50, result.getCount());
+                                for (IdRange range : result.getRanges()) {
+                                    for (long id = range.getStart(); id < range.getStart() + range.getCount(); id++) {
+                                        list.add(id);
+                                    }
+                                }
+                            } else {
+                                list.add(idGen.nextId("a"));
+                            }
+                            Assert.assertTrue(list.get(list.size() - 1) > last);
+                            last = list.get(list.size() - 1);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Set<Long> unique = new HashSet<Long>();
+        int total = 0;
+        for (List<Long> list : ids) {
+            unique.addAll(list);
+            total += list.size();
+        }
+        Assert.assertEquals(total, unique.size());
+    }
+    // 一次批量取号超过一毫秒的序列号容量时跨越多个毫秒
+    @Test
+    public void testBatchAcrossMillis() {
+        SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(1);
+        BatchResult result = idGen.get("a", 10000);
+        Assert.assertEquals(10000, result.getCount());
+        Assert.assertTrue(result.getRanges().size() >= 3);
+        long last = -1;
+        for (IdRange range : result.getRanges()) {
+            Assert.assertTrue(range.getStart() > last);
+            last = range.getStart() + range.getCount() - 1;
+        }
+    }
+
+    @Test
+    public void testClockBackwards() {
+        final long[] now = {System.currentTimeMillis()};
+        SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(1) {
+            @Override
+            protected long timeGen() {
+                return now[0];
+            }
+        };
+        Assert.assertTrue(idGen.nextId("a") > 0);
+        now[0] -= 3;    // 等待之后时间仍然落后
+        Assert.assertEquals(-1, idGen.nextId("a"));
+        now[0] -= 10;
+        Assert.assertEquals(-3, idGen.nextId("a"));
+        now[0] += 13;
+        Assert.assertTrue(idGen.nextId("a") > 0);
+    }
+
+    // ticker 时钟下批量取号跨越多个毫秒时挂起等待后台线程更新时间，id 仍然递增
+    @Test
+    public void testTickerClock() {
+        SnowflakeClock clock = SnowflakeClock.of("ticker");
+        SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(1);
+        idGen.setClock(clock);
+        long last = idGen.nextId("a");
+        BatchResult result = idGen.get("a", 20000);
+        Assert.assertEquals(20000, result.getCount());
+        for (IdRange range : result.getRanges()) {
+            Assert.assertTrue(range.getStart() > last);
+            last = range.getStart() + range.getCount() - 1;
+        }
+        Assert.assertTrue(idGen.nextId("a") > last);
+        Assert.assertTrue(Math.abs(clock.currentTimeMillis() - System.currentTimeMillis()) < 50);
+        clock.close();
+    }
+
+    // 开启借用后时钟不动也能在几个逻辑毫秒内超过单毫秒 4096 的上限，小幅回拨时继续在逻辑时钟上分配
+    @Test
+    public void testBorrowFromFuture() {
+        final long[] now = {System.currentTimeMillis()};
+        SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(1) {
+            @Override
+            protected long timeGen() {
+                return now[0];
+            }
+        };
+        idGen.setMaxBorrowMillis(3);
+        long id = idGen.nextId("a");
+        now[0] -= 2;    // 回拨不超过借用上限
+        Assert.assertTrue(idGen.nextId("a") > id);
+        Assert.assertEquals(2, idGen.getAheadMillis());
+        now[0] += 2;
+        BatchResult result = idGen.get("a", 15000);
+        Assert.assertEquals(15000, result.getCount());
+        Assert.assertEquals(3, idGen.getAheadMillis());
+        long last = -1;
+        for (IdRange range : result.getRanges()) {
+            Assert.assertTrue(range.getStart() > last);
+            last = range.getStart() + range.getCount() - 1;
+        }
+        now[0] -= 10;
+        Assert.assertEquals(-3, idGen.nextId("a"));
+        now[0] += 20;
+        Assert.assertTrue(idGen.nextId("a") > last);
+        Assert.assertEquals(0, idGen.getAheadMillis());
+    }
+
+    // 16 位序列号的布局下单毫秒可以发出超过 4096 个 id，decode 能够还原出 worker id、序列号和时间戳
+    @Test
+    public void testCustomLayout() {
+        long epoch = System.currentTimeMillis() - 1000;
+        SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(63, new SnowflakeLayout(epoch, 6, 16));
+        long before = System.currentTimeMillis();
+        BatchResult result = idGen.get("a", 10000);
+        Assert.assertEquals(10000, result.getCount());
+        IdRange first = result.getRanges().get(0);
+        SnowflakeId decoded = idGen.decode(first.getStart() + 1);
+        Assert.assertEquals(63, decoded.getWorkerId());
+        Assert.assertTrue(decoded.getSequence() >= 1 && decoded.getSequence() < 65536);
+        Assert.assertTrue(decoded.getTimestamp() >= before && decoded.getTimestamp() <= System.currentTimeMillis());
+        SnowflakeId id = SnowflakeLayout.DEFAULT.decode(new SnowflakeIDGenImpl(5).nextId("a"));
+        Assert.assertEquals(5, id.getWorkerId());
+        Assert.assertTrue(id.getSequence() < 100);
+    }
+
+    @Test
+    public void testIllegalLayout() {
+        try {
+            new SnowflakeIDGenImpl(64, new SnowflakeLayout(SnowflakeLayout.DEFAULT.getEpoch(), 6, 16));   // worker id 超出 6 位
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new SnowflakeLayout(SnowflakeLayout.DEFAULT.getEpoch(), 10, 23);    // 序列号位数超过上限
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new SnowflakeLayout(0, 16, 12);  // 35 位时间戳容纳不下从 1970 年到现在的毫秒数
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new SnowflakeLayout(System.currentTimeMillis() + 60000, 10, 12);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    // 时间超出布局的时间戳范围后返回错误码而不是溢出的 id；快要过期的布局在启动时被拒绝
+    @Test
+    public void testLayoutExpired() {
+        final SnowflakeLayout layout = SnowflakeLayout.DEFAULT;
+        final long[] now = {layout.getExpireTime()};
+        SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(1, layout) {
+            @Override
+            protected long timeGen() {
+                return now[0];
+            }
+        };
+        long id = idGen.nextId("a");
+        Assert.assertTrue(id > 0);
+        Assert.assertEquals(layout.getExpireTime(), idGen.decode(id).getTimestamp());
+        now[0]++;
+        Assert.assertEquals(SnowflakeIDGenImpl.EXCEPTION_LAYOUT_EXPIRED, idGen.nextId("a"));
+        Assert.assertEquals(SnowflakeIDGenImpl.EXCEPTION_LAYOUT_EXPIRED, idGen.get("a", 10).getCode());
+        layout.checkExpireHorizon(TimeUnit.DAYS.toMillis(365));
+        try {
+            new SnowflakeLayout(System.currentTimeMillis() - 1000, 20, 22).checkExpireHorizon(TimeUnit.DAYS.toMillis(1));  // 21 位时间戳只能用 35 分钟
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    // 每个 key 独立的序列号空间：时钟不动时两个 key 在同一毫秒内各自发出 3000 个 id，共用一个序列号时会一直等待下一毫秒
+    @Test(timeout = 5000)
+    public void testPerKeySequence() {
+        final long now = System.currentTimeMillis();
+        SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(1) {
+            @Override
+            protected long timeGen() {
+                return now;
+            }
+        };
+        idGen.setPerKeySequence(true);
+        idGen.setMaxKeys(2);
+        BatchResult a = idGen.get("a", 3000);
+        BatchResult b = idGen.get("b", 3000);
+        Assert.assertEquals(1, a.getRanges().size());
+        Assert.assertEquals(1, b.getRanges().size());
+        Assert.assertEquals(now, idGen.decode(a.getRanges().get(0).getStart()).getTimestamp());
+        Assert.assertEquals(now, idGen.decode(b.getRanges().get(0).getStart()).getTimestamp());
+        Assert.assertTrue(idGen.decode(b.getRanges().get(0).getStart()).getSequence() < 100);
+        Assert.assertTrue(idGen.nextId("a") > a.getRanges().get(0).getStart());
+        BatchResult c = idGen.get("c", 3000);   // 超过 maxKeys 的 key 共用一个状态
+        BatchResult d = idGen.get("d", 900);
+        Assert.assertTrue(d.getRanges().get(0).getStart() > c.getRanges().get(0).getStart() + 2999);
+    }
 }
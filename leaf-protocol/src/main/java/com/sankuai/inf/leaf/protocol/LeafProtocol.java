@@ -0,0 +1,89 @@
+package com.sankuai.inf.leaf.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Leaf 二进制协议，所有整数都是大端序，每个帧以 4 字节的长度开头（不含长度字段本身）：
+ * <pre>
+ * 请求：length | requestId(int) | type(byte) | keyLength(short) | key(UTF-8) | count(int)
+ * 成功：length | requestId(int) | STATUS_OK(byte) | rangeCount(short) | rangeCount 个 { start(long) | count(int) }
+ * 失败：length | requestId(int) | STATUS_ERROR(byte) | code(long)
+ * </pre>
+ * 同一个连接上可以连续发出多个请求而不等待响应，客户端按 requestId 匹配响应。
+ * 单独成一个只依赖 JDK 的模块，由 leaf-client 和 leaf-server 共用
+ */
+public final class LeafProtocol {
+    public static final byte TYPE_SEGMENT = 1;
+    public static final byte TYPE_SNOWFLAKE = 2;
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    /**
+     * 帧长度上限，超过时服务端直接关闭连接
+     */
+    public static final int MAX_FRAME_LENGTH = 65536;
+    /**
+     * 服务端在 IDGen 的错误码之外使用的错误码
+     */
+    public static final long ERROR_ILLEGAL_COUNT = -4;
+    public static final long ERROR_UNKNOWN_TYPE = -5;
+    public static final long ERROR_NO_KEY = -6;
+    /**
+     * 服务端取号的线程池已满，可以换一个节点重试
+     */
+    public static final long ERROR_BUSY = -7;
+
+    private static final int REQUEST_HEADER = 4 + 1 + 2 + 4;
+    private static final int RESPONSE_HEADER = 4 + 1;
+    private static final int RANGE_SIZE = 8 + 4;
+
+    private LeafProtocol() {
+    }
+
+    public static int requestSize(byte[] key) {
+        return 4 + REQUEST_HEADER + key.length;
+    }
+
+    public static void writeRequest(ByteBuffer out, int requestId, byte type, byte[] key, int count) {
+        out.putInt(REQUEST_HEADER + key.length);
+        out.putInt(requestId);
+        out.put(type);
+        out.putShort((short) key.length);
+        out.put(key);
+        out.putInt(count);
+    }
+
+    public static int rangesSize(int rangeCount) {
+        return 4 + RESPONSE_HEADER + 2 + rangeCount * RANGE_SIZE;
+    }
+    // 写入成功响应的头部，之后紧跟着调用 rangeCount 次 writeRange
+    public static void writeRangesHeader(ByteBuffer out, int requestId, int rangeCount) {
+        out.putInt(RESPONSE_HEADER + 2 + rangeCount * RANGE_SIZE);
+        out.putInt(requestId);
+        out.put(STATUS_OK);
+        out.putShort((short) rangeCount);
+    }
+
+    public static void writeRange(ByteBuffer out, long start, int count) {
+        out.putLong(start);
+        out.putInt(count);
+    }
+
+    public static int errorSize() {
+        return 4 + RESPONSE_HEADER + 8;
+    }
+
+    public static void writeError(ByteBuffer out, int requestId, long code) {
+        out.putInt(RESPONSE_HEADER + 8);
+        out.putInt(requestId);
+        out.put(STATUS_ERROR);
+        out.putLong(code);
+    }
+    // in 中从 position 开始已经有一个完整的帧时返回帧长度（不含长度字段），否则返回 -1，不移动 position
+    public static int frameLength(ByteBuffer in) {
+        if (in.remaining() < 4) {
+            return -1;
+        }
+        int length = in.getInt(in.position());
+        return in.remaining() - 4 >= length ? length : -1;
+    }
+}
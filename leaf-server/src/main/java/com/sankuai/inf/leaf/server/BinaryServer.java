@@ -0,0 +1,419 @@
+package com.sankuai.inf.leaf.server;
+
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.IdRange;
+import com.sankuai.inf.leaf.common.PropertyFactory;
+import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.protocol.LeafProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于 JDK NIO selector 的二进制取号服务，协议见 leaf-protocol 中的 LeafProtocol，配套的客户端为 LeafClient：
+ * 每个请求带有 requestId，同一个连接上可以连续发出多个请求，一次读到的请求作为一个任务交给有界的 handler 线程池取号，
+ * 完成后由 worker 线程写出，线程池满时返回 ERROR_BUSY；客户端按 requestId 匹配响应，不同任务的响应不保证按请求顺序返回。
+ * 线程模型和 NioHttpServer 相同，一个 acceptor 线程加若干个 worker 线程
+ */
+@Component
+public class BinaryServer {
+    private static final Logger logger = LoggerFactory.getLogger(BinaryServer.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * 一个连接上同时在 handler 线程池中的任务数上限，达到后暂停读取这个连接
+     */
+    private static final int MAX_IN_FLIGHT = 16;
+
+    private final SegmentService segmentService;
+    private final SnowflakeService snowflakeService;
+    private final boolean enable;
+    private final int port;
+    private final int threads;
+    private final int handlerThreads;
+    private final int handlerQueue;
+    private volatile boolean running;
+    private ThreadPoolExecutor handlers;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private Worker[] workers;
+
+    public BinaryServer(SegmentService segmentService, SnowflakeService snowflakeService) {
+        this.segmentService = segmentService;
+        this.snowflakeService = snowflakeService;
+        Properties properties = PropertyFactory.getProperties();
+        this.enable = Boolean.parseBoolean(properties.getProperty(Constants.LEAF_BINARY_ENABLE, "false"));
+        this.port = Integer.parseInt(properties.getProperty(Constants.LEAF_BINARY_PORT, "8082"));
+        this.threads = Integer.parseInt(properties.getProperty(Constants.LEAF_BINARY_THREADS,
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        this.handlerThreads = Integer.parseInt(properties.getProperty(Constants.LEAF_BINARY_HANDLER_THREADS,
+                String.valueOf(Runtime.getRuntime().availableProcessors() * 2)));
+        this.handlerQueue = Integer.parseInt(properties.getProperty(Constants.LEAF_BINARY_HANDLER_QUEUE, "1024"));
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enable) {
+            return;
+        }
+        running = true;
+        handlers = new ThreadPoolExecutor(handlerThreads, handlerThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(handlerQueue), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Thread-Binary-Handler-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+            Thread thread = new Thread(workers[i], "Thread-Binary-Worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        acceptSelector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "Thread-Binary-Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("Binary server started on port {} with {} workers", port, threads);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        acceptSelector.wakeup();
+        serverChannel.close();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+        handlers.shutdown();
+    }
+    // 新连接按轮询交给 worker，由 worker 自己注册到它的 selector 上
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    workers[next].register(channel);
+                    next = (next + 1) % workers.length;
+                }
+            } catch (IOException e) {
+                if (running) {
+                    logger.warn("accept exception", e);
+                }
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+        private final Queue<SelectionKey> completed = new ConcurrentLinkedQueue<SelectionKey>();  // 有任务完成、等待写出响应的连接
+
+        Worker() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+        // 在 handler 线程中调用，由 worker 线程写出响应
+        void complete(SelectionKey key) {
+            completed.add(key);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ, new Connection(this, channel));
+                    }
+                    SelectionKey done;
+                    while ((done = completed.poll()) != null) {
+                        if (!done.isValid()) {  // 取号期间连接已经关闭
+                            continue;
+                        }
+                        Connection connection = (Connection) done.attachment();
+                        try {
+                            connection.resume(done);
+                        } catch (IOException e) {
+                            connection.close(done);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read(key);
+                            } else if (key.isWritable()) {
+                                connection.flush(key);
+                            }
+                        } catch (IOException e) {   // 对端重置连接、帧长度非法等
+                            connection.close(key);
+                        } catch (RuntimeException e) {  // 不能让一个连接的异常结束整个 worker
+                            logger.warn("handle request exception", e);
+                            connection.close(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.warn("worker exception", e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+    // 一个连接的读写缓冲，只在所属 worker 线程中访问；handler 线程编码好的响应通过 responses 交给 worker 线程
+    private class Connection {
+        private final Worker worker;
+        private final SocketChannel channel;
+        private ByteBuffer in = ByteBuffer.allocate(1024);
+        private ByteBuffer out = ByteBuffer.allocate(4096);
+        private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<ByteBuffer>();
+        private int inFlight;   // 已经提交、还没有写出响应的任务数
+
+        Connection(Worker worker, SocketChannel channel) {
+            this.worker = worker;
+            this.channel = channel;
+        }
+        // 一次读到的数据中可能有多个完整的请求帧，参数不合法的直接写出错误，其余的作为一个任务交给 handler 线程池
+        void read(SelectionKey key) throws IOException {
+            if (channel.read(in) < 0) {
+                close(key);
+                return;
+            }
+            in.flip();
+            List<Request> requests = new ArrayList<Request>();
+            int length;
+            while ((length = LeafProtocol.frameLength(in)) >= 0) {
+                int end = in.position() + 4 + length;
+                Request request = parse(length);
+                if (request != null) {
+                    requests.add(request);
+                }
+                in.position(end);
+            }
+            checkFrame();
+            in.compact();
+            if (!requests.isEmpty()) {
+                dispatch(key, requests);
+            }
+            flush(key);
+        }
+
+        private void dispatch(final SelectionKey key, final List<Request> requests) {
+            try {
+                handlers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        responses.add(handle(requests));
+                        worker.complete(key);
+                    }
+                });
+                inFlight++;
+            } catch (RejectedExecutionException e) {    // handler 线程池已满
+                for (Request request : requests) {
+                    respondError(request.requestId, LeafProtocol.ERROR_BUSY);
+                }
+            }
+        }
+
+        void resume(SelectionKey key) throws IOException {
+            ByteBuffer response;
+            while ((response = responses.poll()) != null) {
+                out = ensure(out, response.remaining());
+                out.put(response);
+                inFlight--;
+            }
+            flush(key);
+        }
+        // 剩下的半个帧超过缓冲区容量时扩容，帧长度非法时关闭连接
+        private void checkFrame() throws IOException {
+            if (in.remaining() < 4) {
+                return;
+            }
+            int length = in.getInt(in.position());
+            if (length < 0 || length > LeafProtocol.MAX_FRAME_LENGTH) {
+                throw new IOException("illegal frame length " + length);
+            }
+            if (4 + length > in.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                bigger.put(in);
+                bigger.flip();
+                in = bigger;
+            }
+        }
+
+        // 参数不合法时直接写出错误并返回 null
+        private Request parse(int length) throws IOException {
+            if (length < 11 || length > LeafProtocol.MAX_FRAME_LENGTH) {
+                throw new IOException("illegal frame length " + length);
+            }
+            in.getInt();
+            int requestId = in.getInt();
+            byte type = in.get();
+            int keyLength = in.getShort() & 0xFFFF;
+            if (keyLength != length - 11) {
+                throw new IOException("illegal key length " + keyLength);
+            }
+            String key = new String(in.array(), in.position(), keyLength, UTF8);
+            in.position(in.position() + keyLength);
+            int count = in.getInt();
+            if (keyLength == 0) {
+                respondError(requestId, LeafProtocol.ERROR_NO_KEY);
+            } else if (count <= 0 || count > LeafController.MAX_BATCH_COUNT) {
+                respondError(requestId, LeafProtocol.ERROR_ILLEGAL_COUNT);
+            } else if (type != LeafProtocol.TYPE_SEGMENT && type != LeafProtocol.TYPE_SNOWFLAKE) {
+                respondError(requestId, LeafProtocol.ERROR_UNKNOWN_TYPE);
+            } else {
+                return new Request(requestId, type, key, count);
+            }
+            return null;
+        }
+
+        private void respondError(int requestId, long code) {
+            out = ensure(out, LeafProtocol.errorSize());
+            LeafProtocol.writeError(out, requestId, code);
+        }
+        // 写不完时只关注可写事件，暂停读取新的请求，对端不读响应时不会无限堆积
+        void flush(SelectionKey key) throws IOException {
+            out.flip();
+            channel.write(out);
+            if (out.hasRemaining()) {
+                out.compact();
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            out.clear();
+            key.interestOps(inFlight < MAX_IN_FLIGHT ? SelectionKey.OP_READ : 0);
+        }
+
+        void close(SelectionKey key) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+    // 在 handler 线程中取号并编码响应，返回的缓冲已经 flip
+    private ByteBuffer handle(List<Request> requests) {
+        ByteBuffer out = ByteBuffer.allocate(requests.size() * LeafProtocol.rangesSize(1));
+        for (Request request : requests) {
+            int requestId = request.requestId;
+            try {
+                if (request.count == 1) {   // 单个取号不创建 BatchResult
+                    long id = request.type == LeafProtocol.TYPE_SEGMENT ? segmentService.nextId(request.key) : snowflakeService.nextId(request.key);
+                    if (id < 0) {
+                        out = ensure(out, LeafProtocol.errorSize());
+                        LeafProtocol.writeError(out, requestId, id);
+                    } else {
+                        out = ensure(out, LeafProtocol.rangesSize(1));
+                        LeafProtocol.writeRangesHeader(out, requestId, 1);
+                        LeafProtocol.writeRange(out, id, 1);
+                    }
+                    continue;
+                }
+                BatchResult result = request.type == LeafProtocol.TYPE_SEGMENT ? segmentService.getIds(request.key, request.count)
+                        : snowflakeService.getIds(request.key, request.count);
+                if (result.getStatus() == Status.EXCEPTION) {
+                    out = ensure(out, LeafProtocol.errorSize());
+                    LeafProtocol.writeError(out, requestId, result.getCode());
+                } else {
+                    List<IdRange> ranges = result.getRanges();
+                    out = ensure(out, LeafProtocol.rangesSize(ranges.size()));
+                    LeafProtocol.writeRangesHeader(out, requestId, ranges.size());
+                    for (IdRange range : ranges) {
+                        LeafProtocol.writeRange(out, range.getStart(), range.getCount());
+                    }
+                }
+            } catch (RuntimeException e) {  // 不能让一个请求的异常吞掉同一批其他请求的响应，按繁忙返回，客户端换节点重试
+                logger.warn("handle request exception", e);
+                out = ensure(out, LeafProtocol.errorSize());
+                LeafProtocol.writeError(out, requestId, LeafProtocol.ERROR_BUSY);
+            }
+        }
+        out.flip();
+        return out;
+    }
+    // 剩余空间不足 size 时换成更大的缓冲
+    private static ByteBuffer ensure(ByteBuffer buffer, int size) {
+        if (buffer.remaining() >= size) {
+            return buffer;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private static class Request {
+        private final int requestId;
+        private final byte type;
+        private final String key;
+        private final int count;
+
+        Request(int requestId, byte type, String key, int count) {
+            this.requestId = requestId;
+            this.type = type;
+            this.key = key;
+            this.count = count;
+        }
+    }
+}
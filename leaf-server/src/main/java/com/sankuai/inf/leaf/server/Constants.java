@@ -5,7 +5,46 @@ public class Constants {
     public static final String LEAF_JDBC_URL = "leaf.jdbc.url";
     public static final String LEAF_JDBC_USERNAME = "leaf.jdbc.username";
     public static final String LEAF_JDBC_PASSWORD = "leaf.jdbc.password";
+    public static final String LEAF_SEGMENT_WAIT_TIMEOUT = "leaf.segment.wait.timeout";
+    public static final String LEAF_SEGMENT_PREFETCH_SAFETY = "leaf.segment.prefetch.safety";
+    public static final String LEAF_SEGMENT_MAX_STEP = "leaf.segment.max.step";
+    public static final String LEAF_SEGMENT_DURATION = "leaf.segment.duration";
+    public static final String LEAF_SEGMENT_DAO = "leaf.segment.dao";
+    public static final String LEAF_SEGMENT_BATCH_WINDOW = "leaf.segment.batch.window";
+    public static final String LEAF_SEGMENT_BATCH_QUEUE = "leaf.segment.batch.queue";
+    public static final String LEAF_SEGMENT_LOADER_THREADS = "leaf.segment.loader.threads";
+    public static final String LEAF_SEGMENT_LOADER_QUEUE = "leaf.segment.loader.queue";
+    public static final String LEAF_SEGMENT_SYNC_INTERVAL = "leaf.segment.sync.interval";
+    public static final String LEAF_SEGMENT_TAGS_VERSION = "leaf.segment.tags.version";
+    public static final String LEAF_SEGMENT_LAZY = "leaf.segment.lazy";
+    public static final String LEAF_SEGMENT_LAZY_TTL = "leaf.segment.lazy.ttl";
+    public static final String LEAF_SEGMENT_LAZY_MAX_TAGS = "leaf.segment.lazy.max.tags";
+    public static final String LEAF_SEGMENT_LAZY_MISSING_TTL = "leaf.segment.lazy.missing.ttl";
+    public static final String LEAF_SEGMENT_WARMUP_THREADS = "leaf.segment.warmup.threads";
+    public static final String LEAF_SEGMENT_WARMUP_TAGS = "leaf.segment.warmup.tags";
+    public static final String LEAF_SEGMENT_JOURNAL = "leaf.segment.journal";
+    public static final String LEAF_SEGMENT_RESERVE_MINUTES = "leaf.segment.reserve.minutes";
+    public static final String LEAF_SEGMENT_RESERVE_FAILURES = "leaf.segment.reserve.failures";
+    public static final String LEAF_SEGMENT_JOURNAL_CAPACITY = "leaf.segment.journal.capacity";
+    public static final String LEAF_NIO_ENABLE = "leaf.nio.enable";
+    public static final String LEAF_NIO_PORT = "leaf.nio.port";
+    public static final String LEAF_NIO_THREADS = "leaf.nio.threads";
+    public static final String LEAF_NIO_HANDLER_THREADS = "leaf.nio.handler.threads";
+    public static final String LEAF_NIO_HANDLER_QUEUE = "leaf.nio.handler.queue";
+    public static final String LEAF_BINARY_ENABLE = "leaf.binary.enable";
+    public static final String LEAF_BINARY_PORT = "leaf.binary.port";
+    public static final String LEAF_BINARY_THREADS = "leaf.binary.threads";
+    public static final String LEAF_BINARY_HANDLER_THREADS = "leaf.binary.handler.threads";
+    public static final String LEAF_BINARY_HANDLER_QUEUE = "leaf.binary.handler.queue";
     public static final String LEAF_SNOWFLAKE_ENABLE = "leaf.snowflake.enable";
     public static final String LEAF_SNOWFLAKE_PORT = "leaf.snowflake.port";
     public static final String LEAF_SNOWFLAKE_ZK_ADDRESS = "leaf.snowflake.zk.address";
+    public static final String LEAF_SNOWFLAKE_CLOCK = "leaf.snowflake.clock";
+    public static final String LEAF_SNOWFLAKE_MAX_BORROW = "leaf.snowflake.max.borrow";
+    public static final String LEAF_SNOWFLAKE_EPOCH = "leaf.snowflake.epoch";
+    public static final String LEAF_SNOWFLAKE_WORKER_BITS = "leaf.snowflake.worker.bits";
+    public static final String LEAF_SNOWFLAKE_SEQUENCE_BITS = "leaf.snowflake.sequence.bits";
+    public static final String LEAF_SNOWFLAKE_EXPIRE_HORIZON_DAYS = "leaf.snowflake.expire.horizon.days";
+    public static final String LEAF_SNOWFLAKE_PER_KEY = "leaf.snowflake.per.key";
+    public static final String LEAF_SNOWFLAKE_PER_KEY_MAX = "leaf.snowflake.per.key.max";
 }
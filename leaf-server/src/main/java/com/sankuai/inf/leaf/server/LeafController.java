@@ -1,18 +1,41 @@
 package com.sankuai.inf.leaf.server;
 
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.IdRange;
 import com.sankuai.inf.leaf.common.Result;
 import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.server.exception.IllegalCountException;
 import com.sankuai.inf.leaf.server.exception.LeafServerException;
 import com.sankuai.inf.leaf.server.exception.NoKeyException;
+import com.sankuai.inf.leaf.server.exception.NotReadyException;
+import com.sankuai.inf.leaf.snowflake.model.SnowflakeId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
 @RestController
 public class LeafController {
+    /**
+     * 单次批量获取 id 的个数上限
+     */
+    static final int MAX_BATCH_COUNT = 10000;
+    /**
+     * 每个线程复用的 id 十进制字节缓冲，long 最多 19 位
+     */
+    private static final ThreadLocal<byte[]> DIGITS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[20];
+        }
+    };
     private Logger logger = LoggerFactory.getLogger(LeafController.class);
     private final SegmentService segmentService;
     private final SnowflakeService snowflakeService;
@@ -23,25 +46,78 @@ public class LeafController {
     }
 
     @RequestMapping(value = "/api/segment/get/{key}")
-    public String getSegmentID(@PathVariable("key") String key) {
-        return get(key, segmentService.getId(key));
+    public void getSegmentID(@PathVariable("key") String key, HttpServletResponse response) throws IOException {
+        write(key, segmentService.nextId(key), response);
+    }
+
+    @RequestMapping(value = "/api/segment/get/{key}", params = "count")
+    public List<IdRange> getSegmentIDs(@PathVariable("key") String key, @RequestParam("count") int count) {
+        checkCount(count);
+        return get(key, segmentService.getIds(key, count));
+    }
+
+    // 供负载均衡做就绪检查，号段预热完成之前返回 503
+    @RequestMapping(value = "/api/segment/ready")
+    public String ready() {
+        if (!segmentService.isReady()) {
+            throw new NotReadyException();
+        }
+        return "OK";
     }
 
     @RequestMapping(value = "/api/snowflake/get/{key}")
-    public String getSnowflakeID(@PathVariable("key") String key) {
-        return get(key, snowflakeService.getId(key));
+    public void getSnowflakeID(@PathVariable("key") String key, HttpServletResponse response) throws IOException {
+        write(key, snowflakeService.nextId(key), response);
+    }
+
+    @RequestMapping(value = "/api/snowflake/get/{key}", params = "count")
+    public List<IdRange> getSnowflakeIDs(@PathVariable("key") String key, @RequestParam("count") int count) {
+        checkCount(count);
+        return get(key, snowflakeService.getIds(key, count));
+    }
+
+    // 按配置的位布局把 snowflake id 拆成时间戳、worker id 和序列号
+    @RequestMapping(value = "/api/snowflake/decode/{id}")
+    public SnowflakeId decodeSnowflakeID(@PathVariable("id") long id) {
+        SnowflakeId decoded = snowflakeService.decode(id);
+        if (decoded == null) {
+            throw new LeafServerException("Snowflake is not enabled");
+        }
+        return decoded;
     }
 
-    private String get(@PathVariable("key") String key, Result id) {
-        Result result;
+    // 把 id 的十进制直接写入响应，不经过 String 和消息转换器，响应内容和原来返回 String 时相同
+    private void write(String key, long id, HttpServletResponse response) throws IOException {
         if (key == null || key.isEmpty()) {
             throw new NoKeyException();
         }
+        if (id < 0) {   // 错误码
+            throw new LeafServerException(Result.of(id).toString());
+        }
+        byte[] digits = DIGITS.get();
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + id % 10);
+            id /= 10;
+        } while (id != 0);
+        response.setContentType("text/plain");
+        response.setContentLength(digits.length - pos);
+        response.getOutputStream().write(digits, pos, digits.length - pos);
+    }
 
-        result = id;
+    private List<IdRange> get(String key, BatchResult result) {
+        if (key == null || key.isEmpty()) {
+            throw new NoKeyException();
+        }
         if (result.getStatus().equals(Status.EXCEPTION)) {
             throw new LeafServerException(result.toString());
         }
-        return String.valueOf(result.getId());
+        return result.getRanges();
+    }
+
+    private void checkCount(int count) {
+        if (count <= 0 || count > MAX_BATCH_COUNT) {
+            throw new IllegalCountException();
+        }
     }
 }
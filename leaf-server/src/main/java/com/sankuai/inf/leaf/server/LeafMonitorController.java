@@ -2,16 +2,22 @@ package com.sankuai.inf.leaf.server;
 
 import com.sankuai.inf.leaf.segment.SegmentIDGenImpl;
 import com.sankuai.inf.leaf.server.model.SegmentBufferView;
+import com.sankuai.inf.leaf.server.model.SegmentView;
 import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import com.sankuai.inf.leaf.segment.model.Segment;
 import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+import com.sankuai.inf.leaf.snowflake.SnowflakeIDGenImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -20,6 +26,8 @@ public class LeafMonitorController {
     private Logger logger = LoggerFactory.getLogger(LeafMonitorController.class);
     @Autowired
     SegmentService segmentService;
+    @Autowired
+    SnowflakeService snowflakeService;
 
     @RequestMapping(value = "cache")
     public String getCache(Model model) {
@@ -28,30 +36,49 @@ public class LeafMonitorController {
         if (segmentIDGen == null) {
             throw new IllegalArgumentException("You should config leaf.segment.enable=true first");
         }
-        Map<String, SegmentBuffer> cache = segmentIDGen.getCache(); // 获取 idGen 持有的 cache，cache 中缓存的是 biz-tag -> buffer（持有两个 segment）
+        Map<String, SegmentBuffer> cache = segmentIDGen.getCache(); // 获取 idGen 持有的 cache，cache 中缓存的是 biz-tag -> buffer（持有一个 segment 环）
         for (Map.Entry<String, SegmentBuffer> entry : cache.entrySet()) {
             SegmentBufferView sv = new SegmentBufferView(); // 构建 buffer segment 的视图对象，可以理解为 pojo
             SegmentBuffer buffer = entry.getValue();    // 得到 biz-tag 对应的 buffer
             sv.setInitOk(buffer.isInitOk());    // 将 buffer 的 init 状态填充到 SegmentBufferView 中
             sv.setKey(buffer.getKey()); // 将 buffer 的 biz-tag 状态填充到 SegmentBufferView 中
-            sv.setPos(buffer.getCurrentPos());  // 获取当前使用的 segment 对应的 pos
-            sv.setNextReady(buffer.isNextReady());  // 获取另外一个未被使用的 segment 的就绪信息
-            sv.setMax0(buffer.getSegments()[0].getMax());   // 这里就是读取 segment[0] 的最大 id 值进行填充
-            sv.setValue0(buffer.getSegments()[0].getValue().get()); // 这里就是读取 segment[0] 的当前 id 值进行填充
-            sv.setStep0(buffer.getSegments()[0].getStep()); // 这里就是读取 segment[0] 的 step 步长值进行填充
-
-            sv.setMax1(buffer.getSegments()[1].getMax());   // 跟上边同理
-            sv.setValue1(buffer.getSegments()[1].getValue().get());
-            sv.setStep1(buffer.getSegments()[1].getStep());
+            sv.setNextReady(buffer.isNextReady());  // 获取下一个 segment 的就绪信息
+            sv.setRingDepth(buffer.getRingDepth()); // 环的深度，可能因为取号线程等待装载而自动加深
+            List<SegmentView> segments = new ArrayList<>();
+            for (Segment segment : buffer.getSegments()) {  // 依次读取环中每个 segment 的当前 id、最大 id 和步长进行填充
+                SegmentView view = new SegmentView();
+                view.setValue(segment.getValue().get());
+                view.setMax(segment.getMax());
+                view.setStep(segment.getStep());
+                segments.add(view);
+            }
+            sv.setSegments(segments);
+            Segment reserve = buffer.getReserve();
+            sv.setReserve(reserve == null ? 0 : reserve.getIdle());   // 应急号段中可用的 id 数
             // 一个 biz-tag 对应一个 SegmentBufferView，添加到 data map 集合中
             data.put(entry.getKey(), sv);
 
         }
         logger.info("Cache info {}", data); // 日志记录缓存信息
         model.addAttribute("data", data);   // 将数据添加到 model 中
+        model.addAttribute("loader", segmentIDGen.getLoader()); // 装载线程池的排队深度和装载耗时分布
         return "segment";   // 返回视图
     }
 
+    @RequestMapping(value = "snowflake")
+    @ResponseBody
+    public Map<String, Object> getSnowflake() {
+        SnowflakeIDGenImpl snowflakeIDGen = snowflakeService.getIdGen();
+        if (snowflakeIDGen == null) {
+            throw new IllegalArgumentException("You should config leaf.snowflake.enable=true first");
+        }
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("workerId", snowflakeIDGen.getWorkerId());
+        data.put("aheadMillis", snowflakeIDGen.getAheadMillis());   // 逻辑时钟领先系统时钟的毫秒数
+        data.put("maxBorrowMillis", snowflakeIDGen.getMaxBorrowMillis());
+        return data;
+    }
+
     @RequestMapping(value = "db")
     public String getDb(Model model) {
         SegmentIDGenImpl segmentIDGen = segmentService.getIdGen();  // 获取 SegmentIDGenImpl，监视器只是对 buffer 的 segment 的数据内容进行监控
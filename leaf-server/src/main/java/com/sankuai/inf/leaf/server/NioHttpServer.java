@@ -0,0 +1,548 @@
+package com.sankuai.inf.leaf.server;
+
+import com.sankuai.inf.leaf.common.PropertyFactory;
+import com.sankuai.inf.leaf.common.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于 JDK NIO selector 的轻量 HTTP/1.1 服务，只提供 /api/segment/get/{key} 和 /api/snowflake/get/{key} 两个单个取号的接口，
+ * 调用 SegmentService、SnowflakeService 的 nextId，支持 keep-alive 和 pipelining，同一个连接上的响应按请求顺序返回；
+ * 一个 acceptor 线程接收连接，按轮询分给 worker 线程，每个 worker 一个 selector。取号可能阻塞（号段第一次从 DB 装载、
+ * 等待下一个号段、snowflake 等待时钟），所以 worker 只负责读写，取号交给有界的 handler 线程池，线程池满时直接返回 503。
+ * 批量取号、监控页面仍然走 Spring MVC
+ */
+@Component
+public class NioHttpServer {
+    private static final Logger logger = LoggerFactory.getLogger(NioHttpServer.class);
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] GET = "GET ".getBytes(ASCII);
+    private static final byte[] CONNECTION = "connection:".getBytes(ASCII);
+    private static final byte[] CLOSE = "close".getBytes(ASCII);
+    private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(ASCII);
+    private static final byte[] SEGMENT_PATH = "/api/segment/get/".getBytes(ASCII);
+    private static final byte[] SNOWFLAKE_PATH = "/api/snowflake/get/".getBytes(ASCII);
+    private static final byte[] OK_HEADER = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: ".getBytes(ASCII);
+    private static final byte[] CLOSE_HEADER = "\r\nConnection: close".getBytes(ASCII);
+    private static final byte[] HEADER_END = "\r\n\r\n".getBytes(ASCII);
+    /**
+     * 请求行加请求头的长度上限，超过后返回 431 并关闭连接
+     */
+    private static final int MAX_REQUEST_SIZE = 8192;
+    private static final int ROUTE_SEGMENT = 1;
+    private static final int ROUTE_SNOWFLAKE = 2;
+
+    private final SegmentService segmentService;
+    private final SnowflakeService snowflakeService;
+    private final boolean enable;
+    private final int port;
+    private final int threads;
+    private final int handlerThreads;
+    private final int handlerQueue;
+    private volatile boolean running;
+    private ThreadPoolExecutor handlers;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private Worker[] workers;
+
+    public NioHttpServer(SegmentService segmentService, SnowflakeService snowflakeService) {
+        this.segmentService = segmentService;
+        this.snowflakeService = snowflakeService;
+        Properties properties = PropertyFactory.getProperties();
+        this.enable = Boolean.parseBoolean(properties.getProperty(Constants.LEAF_NIO_ENABLE, "false"));
+        this.port = Integer.parseInt(properties.getProperty(Constants.LEAF_NIO_PORT, "8081"));
+        this.threads = Integer.parseInt(properties.getProperty(Constants.LEAF_NIO_THREADS,
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        this.handlerThreads = Integer.parseInt(properties.getProperty(Constants.LEAF_NIO_HANDLER_THREADS,
+                String.valueOf(Runtime.getRuntime().availableProcessors() * 2)));
+        this.handlerQueue = Integer.parseInt(properties.getProperty(Constants.LEAF_NIO_HANDLER_QUEUE, "1024"));
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enable) {
+            return;
+        }
+        running = true;
+        handlers = new ThreadPoolExecutor(handlerThreads, handlerThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(handlerQueue), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Thread-Nio-Handler-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+            Thread thread = new Thread(workers[i], "Thread-Nio-Worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        acceptSelector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "Thread-Nio-Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("Nio http server started on port {} with {} workers", port, threads);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        acceptSelector.wakeup();
+        serverChannel.close();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+        handlers.shutdown();
+    }
+    // 新连接按轮询交给 worker，由 worker 自己注册到它的 selector 上
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    workers[next].register(channel);
+                    next = (next + 1) % workers.length;
+                }
+            } catch (IOException e) {
+                if (running) {
+                    logger.warn("accept exception", e);
+                }
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+        private final Queue<SelectionKey> completed = new ConcurrentLinkedQueue<SelectionKey>();  // 取号已经完成、等待写出响应的连接
+
+        Worker() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+        // 在 handler 线程中调用，由 worker 线程写出响应
+        void complete(SelectionKey key) {
+            completed.add(key);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ, new Connection(this, channel));
+                    }
+                    SelectionKey done;
+                    while ((done = completed.poll()) != null) {
+                        if (!done.isValid()) {  // 取号期间连接已经关闭
+                            continue;
+                        }
+                        Connection connection = (Connection) done.attachment();
+                        try {
+                            connection.resume(done);
+                        } catch (IOException e) {
+                            connection.close(done);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read(key);
+                            } else if (key.isWritable()) {
+                                connection.flush(key);
+                            }
+                        } catch (IOException e) {   // 对端重置连接等
+                            connection.close(key);
+                        } catch (RuntimeException e) {  // 不能让一个连接的异常结束整个 worker
+                            logger.warn("handle request exception", e);
+                            connection.close(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.warn("worker exception", e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+    // 一个连接的读写缓冲，只在所属 worker 线程中访问；requests 在 inFlight 期间交给 handler 线程填写 id
+    private class Connection {
+        private final Worker worker;
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(4096);
+        private final byte[] digits = new byte[20];
+        private final List<Request> requests = new ArrayList<Request>();  // 本次读到的请求，按顺序写出响应
+        private boolean inFlight;   // requests 正在 handler 线程池中取号，期间不读取新的请求
+        private boolean closeAfterFlush;
+
+        Connection(Worker worker, SocketChannel channel) {
+            this.worker = worker;
+            this.channel = channel;
+        }
+        // 一次读到的数据中可能有多个完整的请求（pipelining），全部解析后作为一个任务取号，完成后一起写出
+        void read(SelectionKey key) throws IOException {
+            if (channel.read(in) < 0) {
+                close(key);
+                return;
+            }
+            in.flip();
+            boolean closing = false;
+            while (!closing) {
+                int end = headerEnd();
+                if (end < 0) {
+                    if (in.position() == 0 && in.limit() == in.capacity()) {
+                        requests.add(new Request(431, "Request Header Fields Too Large", true));
+                    }
+                    break;
+                }
+                Request request = parse(end);
+                requests.add(request);
+                closing = request.close;
+                in.position(end + HEADER_END.length);
+            }
+            in.compact();
+            dispatch(key);
+        }
+        // 有取号请求时交给 handler 线程池并暂停读取，否则直接写出响应
+        private void dispatch(final SelectionKey key) throws IOException {
+            boolean hasRoute = false;
+            for (Request request : requests) {
+                hasRoute |= request.route != 0;
+            }
+            if (hasRoute) {
+                try {
+                    handlers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            nextIds();
+                            worker.complete(key);
+                        }
+                    });
+                    inFlight = true;
+                    key.interestOps(0);
+                    return;
+                } catch (RejectedExecutionException e) {    // handler 线程池已满
+                    for (Request request : requests) {
+                        if (request.route != 0) {
+                            request.route = 0;
+                            request.status = 503;
+                            request.body = "Service Unavailable";
+                        }
+                    }
+                }
+            }
+            writeResponses(key);
+        }
+        // 在 handler 线程中执行，worker 线程通过 completed 队列看到结果
+        private void nextIds() {
+            for (Request request : requests) {
+                try {
+                    if (request.route == ROUTE_SEGMENT) {
+                        request.id = segmentService.nextId(request.key);
+                    } else if (request.route == ROUTE_SNOWFLAKE) {
+                        request.id = snowflakeService.nextId(request.key);
+                    }
+                } catch (RuntimeException e) {
+                    logger.warn("handle request exception", e);
+                    request.route = 0;
+                    request.status = 500;
+                    request.body = "Internal Server Error";
+                }
+            }
+        }
+
+        void resume(SelectionKey key) throws IOException {
+            inFlight = false;
+            writeResponses(key);
+        }
+
+        private void writeResponses(SelectionKey key) throws IOException {
+            for (Request request : requests) {
+                if (request.route == 0) {
+                    respond(request.status, request.body, request.close);
+                } else if (request.id < 0) {    // 错误码，和 LeafController 一样返回 500
+                    respond(500, Result.of(request.id).toString(), request.close);
+                } else {
+                    respondId(request.id, request.close);
+                }
+            }
+            requests.clear();
+            flush(key);
+        }
+        // 从 position 开始查找请求头的结尾，返回 \r\n\r\n 的起始下标
+        private int headerEnd() {
+            byte[] buf = in.array();
+            for (int i = in.position(); i + 3 < in.limit(); i++) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private Request parse(int end) {
+            byte[] buf = in.array();
+            int start = in.position();
+            int lineEnd = indexOf(buf, start, end, (byte) '\r');
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+            int pathStart = indexOf(buf, start, lineEnd, (byte) ' ') + 1;
+            int pathEnd = pathStart > 0 ? indexOf(buf, pathStart, lineEnd, (byte) ' ') : -1;
+            if (pathEnd < 0) {
+                return new Request(400, "Bad Request", true);
+            }
+            boolean http11 = lineEnd - pathEnd > 8 && buf[lineEnd - 1] == '1' && buf[lineEnd - 3] == '1';
+            boolean close = http11 ? hasHeader(buf, lineEnd, end, CONNECTION, CLOSE)
+                    : !hasHeader(buf, lineEnd, end, CONNECTION, KEEP_ALIVE);
+            if (!startsWith(buf, start, lineEnd, GET)) {
+                return new Request(405, "Method Not Allowed", true);
+            }
+            int route = 0;
+            String key = null;
+            if (startsWith(buf, pathStart, pathEnd, SEGMENT_PATH)) {
+                route = ROUTE_SEGMENT;
+                key = key(buf, pathStart + SEGMENT_PATH.length, pathEnd);
+            } else if (startsWith(buf, pathStart, pathEnd, SNOWFLAKE_PATH)) {
+                route = ROUTE_SNOWFLAKE;
+                key = key(buf, pathStart + SNOWFLAKE_PATH.length, pathEnd);
+            }
+            if (key == null) {  // 路由不存在、带查询参数（批量取号）或者 key 为空
+                return new Request(404, "Not Found", close);
+            }
+            Request request = new Request(0, null, close);
+            request.route = route;
+            request.key = key;
+            return request;
+        }
+        // 路径中 key 的部分，含有 % 时按 UTF-8 解码
+        private String key(byte[] buf, int from, int to) {
+            if (from >= to || indexOf(buf, from, to, (byte) '?') >= 0 || indexOf(buf, from, to, (byte) '/') >= 0) {
+                return null;
+            }
+            String key = new String(buf, from, to - from, ASCII);
+            if (key.indexOf('%') >= 0) {
+                try {
+                    key = URLDecoder.decode(key, "UTF-8");
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+            return key;
+        }
+
+        private void respondId(long id, boolean close) {
+            int pos = digits.length;
+            do {
+                digits[--pos] = (byte) ('0' + id % 10);
+                id /= 10;
+            } while (id != 0);
+            int length = digits.length - pos;
+            ensure(OK_HEADER.length + 2 + CLOSE_HEADER.length + HEADER_END.length + length * 2);
+            out.put(OK_HEADER);
+            putInt(length);
+            if (close) {
+                out.put(CLOSE_HEADER);
+                closeAfterFlush = true;
+            }
+            out.put(HEADER_END);
+            out.put(digits, pos, length);
+        }
+        // 错误响应很少出现，直接拼字符串
+        private void respond(int status, String body, boolean close) {
+            byte[] content = body.getBytes(Charset.forName("UTF-8"));
+            StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(status).append(' ').append(status == 500 ? "Internal Server Error" : body)
+                    .append("\r\nContent-Type: text/plain\r\nContent-Length: ").append(content.length);
+            if (close) {
+                sb.append("\r\nConnection: close");
+                closeAfterFlush = true;
+            }
+            byte[] header = sb.append("\r\n\r\n").toString().getBytes(ASCII);
+            ensure(header.length + content.length);
+            out.put(header);
+            out.put(content);
+        }
+
+        private void putInt(int value) {
+            if (value >= 10) {
+                out.put((byte) ('0' + value / 10));
+            }
+            out.put((byte) ('0' + value % 10));
+        }
+
+        private void ensure(int size) {
+            if (out.remaining() < size) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + size));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+        }
+        // 写不完时只关注可写事件，暂停读取新的请求，对端不读响应时不会无限堆积
+        void flush(SelectionKey key) throws IOException {
+            out.flip();
+            channel.write(out);
+            if (out.hasRemaining()) {
+                out.compact();
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            out.clear();
+            if (closeAfterFlush) {
+                close(key);
+            } else {
+                key.interestOps(inFlight ? 0 : SelectionKey.OP_READ);
+            }
+        }
+
+        void close(SelectionKey key) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 解析出的一个请求，route 为 0 时直接按 status、body 响应，否则由 handler 线程取号后填写 id
+     */
+    private static class Request {
+        private final boolean close;
+        private int route;
+        private String key;
+        private int status;
+        private String body;
+        private long id;
+
+        Request(int status, String body, boolean close) {
+            this.status = status;
+            this.body = body;
+            this.close = close;
+        }
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] buf, int from, int to, byte[] prefix) {
+        if (from + prefix.length > to) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    // 在 [from, to) 的请求头中查找 name 头（不区分大小写，name 为小写并带冒号），值中包含 value 时返回 true
+    private static boolean hasHeader(byte[] buf, int from, int to, byte[] name, byte[] value) {
+        for (int line = from; line < to; ) {
+            while (line < to && (buf[line] == '\r' || buf[line] == '\n')) {
+                line++;
+            }
+            int lineEnd = indexOf(buf, line, to, (byte) '\r');
+            if (lineEnd < 0) {
+                lineEnd = to;
+            }
+            if (regionMatches(buf, line, lineEnd, name)) {
+                for (int i = line + name.length; i + value.length <= lineEnd; i++) {
+                    if (regionMatches(buf, i, lineEnd, value)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            line = lineEnd;
+        }
+        return false;
+    }
+    // 忽略大小写比较，pattern 为小写
+    private static boolean regionMatches(byte[] buf, int from, int to, byte[] pattern) {
+        if (from + pattern.length > to) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            byte b = buf[from + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
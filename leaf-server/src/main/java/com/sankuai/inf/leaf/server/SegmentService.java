@@ -2,19 +2,29 @@ package com.sankuai.inf.leaf.server;
 
 import com.alibaba.druid.pool.DruidDataSource;
 import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.BatchResult;
 import com.sankuai.inf.leaf.common.PropertyFactory;
 import com.sankuai.inf.leaf.common.Result;
 import com.sankuai.inf.leaf.common.ZeroIDGen;
 import com.sankuai.inf.leaf.segment.SegmentIDGenImpl;
+import com.sankuai.inf.leaf.segment.SegmentJournal;
+import com.sankuai.inf.leaf.segment.SegmentLoader;
 import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.dao.impl.CoalescingIDAllocDao;
 import com.sankuai.inf.leaf.segment.dao.impl.IDAllocDaoImpl;
+import com.sankuai.inf.leaf.segment.dao.impl.LastInsertIdIDAllocDaoImpl;
+import com.sankuai.inf.leaf.segment.dao.impl.ReturningIDAllocDaoImpl;
 import com.sankuai.inf.leaf.server.exception.InitException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.LinkedHashSet;
 import java.util.Properties;
+import java.util.Set;
 
 @Service("SegmentService")
 public class SegmentService {
@@ -22,7 +32,7 @@ public class SegmentService {
     IDGen idGen;
     DruidDataSource dataSource;
     public SegmentService() throws SQLException, InitException {    // 根据配置文件来决定是初始化 ZeroIDGen，还是 SegmentIDGenImpl，如果是后者，就
-        Properties properties = PropertyFactory.getProperties();    // 初始化 dataSource，构建 SegmentIDGenImpl 并初始化（主要是完成了从数据库中获取全部的 biz-tag 信息再更新缓存的过程，另外启动了一个每分钟从数据库更新缓存的任务）
+        Properties properties = PropertyFactory.getProperties();    // 初始化 dataSource，构建 SegmentIDGenImpl 并初始化（主要是完成了从数据库中获取全部的 biz-tag 信息再更新缓存的过程，另外启动了一个定期从数据库同步缓存的任务）
         boolean flag = Boolean.parseBoolean(properties.getProperty(Constants.LEAF_SEGMENT_ENABLE, "true"));
         if (flag) {
 
@@ -35,12 +45,42 @@ public class SegmentService {
             dataSource.init();
 
             // Config Dao
-            IDAllocDao dao = new IDAllocDaoImpl(dataSource);
+            IDAllocDao dao = createDao(properties.getProperty(Constants.LEAF_SEGMENT_DAO, "default"));
+            long batchWindow = Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_BATCH_WINDOW, "0"));
+            if (batchWindow > 0) {  // 合并多个 tag 的号段更新，减少 DB 往返
+                dao = new CoalescingIDAllocDao(dao, batchWindow,
+                        Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_BATCH_QUEUE, String.valueOf(CoalescingIDAllocDao.DEFAULT_QUEUE_CAPACITY))));
+            }
 
             // Config ID Gen
             idGen = new SegmentIDGenImpl();
             ((SegmentIDGenImpl) idGen).setDao(dao);
-            if (idGen.init()) { // 初始化，主要是完成了从数据库中获取全部的 biz-tag 信息再更新缓存的过程，另外启动了一个每分钟从数据库更新缓存的任务
+            ((SegmentIDGenImpl) idGen).setWaitTimeout(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_WAIT_TIMEOUT, "10")));
+            ((SegmentIDGenImpl) idGen).setPrefetchSafety(Double.parseDouble(properties.getProperty(Constants.LEAF_SEGMENT_PREFETCH_SAFETY, "3")));
+            ((SegmentIDGenImpl) idGen).setMaxStep(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_MAX_STEP, "1000000")));
+            ((SegmentIDGenImpl) idGen).setLoader(new SegmentLoader(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_LOADER_THREADS, "5")),
+                    Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_LOADER_QUEUE, "1024"))));
+            ((SegmentIDGenImpl) idGen).setSegmentDuration(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_DURATION, "900000")));
+            ((SegmentIDGenImpl) idGen).setSyncInterval(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_SYNC_INTERVAL, "60")));
+            ((SegmentIDGenImpl) idGen).setTagsVersionEnabled(Boolean.parseBoolean(properties.getProperty(Constants.LEAF_SEGMENT_TAGS_VERSION, "false")));
+            ((SegmentIDGenImpl) idGen).setLazyLoad(Boolean.parseBoolean(properties.getProperty(Constants.LEAF_SEGMENT_LAZY, "false")));
+            ((SegmentIDGenImpl) idGen).setIdleTtl(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_LAZY_TTL, "600")));
+            ((SegmentIDGenImpl) idGen).setMaxTags(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_LAZY_MAX_TAGS, "0")));
+            ((SegmentIDGenImpl) idGen).setMissingTagTtl(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_LAZY_MISSING_TTL, "5000")));
+            ((SegmentIDGenImpl) idGen).setWarmUpThreads(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_WARMUP_THREADS, "0")));
+            ((SegmentIDGenImpl) idGen).setWarmUpTags(parseTags(properties.getProperty(Constants.LEAF_SEGMENT_WARMUP_TAGS, "")));
+            ((SegmentIDGenImpl) idGen).setReserveMinutes(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_RESERVE_MINUTES, "0")));
+            ((SegmentIDGenImpl) idGen).setReserveAfterFailures(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_RESERVE_FAILURES, "3")));
+            String journal = properties.getProperty(Constants.LEAF_SEGMENT_JOURNAL, "");
+            if (!journal.isEmpty()) {   // 重启后直接使用本地日志中记录的剩余号段
+                try {
+                    ((SegmentIDGenImpl) idGen).setJournal(new SegmentJournal(new File(journal),
+                            Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_JOURNAL_CAPACITY, "65536"))));
+                } catch (IOException e) {
+                    throw new InitException("Open segment journal " + journal + " fail: " + e.getMessage());
+                }
+            }
+            if (idGen.init()) { // 初始化，主要是完成了从数据库中获取全部的 biz-tag 信息再更新缓存的过程，另外启动了一个定期从数据库同步缓存的任务
                 logger.info("Segment Service Init Successfully");
             } else {
                 throw new InitException("Segment Service Init Fail");
@@ -49,10 +89,42 @@ public class SegmentService {
             idGen = new ZeroIDGen();
             logger.info("Zero ID Gen Service Init Successfully");
         }
-    }   // 通过 idGen 获取 id
+    }
+    // default 为 UPDATE、SELECT、COMMIT 三次往返；last_insert_id（MySQL）和 returning（PostgreSQL 等）只在一条自动提交的 UPDATE 中持有行锁，last_insert_id 之后再不加锁地读一次配置
+    private IDAllocDao createDao(String type) throws InitException {
+        if ("default".equals(type)) {
+            return new IDAllocDaoImpl(dataSource);
+        } else if ("last_insert_id".equals(type)) {
+            return new LastInsertIdIDAllocDaoImpl(dataSource);
+        } else if ("returning".equals(type)) {
+            return new ReturningIDAllocDaoImpl(dataSource);
+        }
+        throw new InitException("Unknown " + Constants.LEAF_SEGMENT_DAO + ": " + type);
+    }
+    // 逗号分隔的 tag 列表
+    private Set<String> parseTags(String tags) {
+        Set<String> result = new LinkedHashSet<String>();
+        for (String tag : tags.split(",")) {
+            if (!tag.trim().isEmpty()) {
+                result.add(tag.trim());
+            }
+        }
+        return result;
+    }
+    // 预热完成之前返回 false，ZeroIDGen 总是就绪
+    public boolean isReady() {
+        return !(idGen instanceof SegmentIDGenImpl) || ((SegmentIDGenImpl) idGen).isReady();
+    }
+    // 通过 idGen 获取 id
     public Result getId(String key) {
         return idGen.get(key);  // 通过 idGen 获取 id
     }
+    public long nextId(String key) {
+        return idGen.nextId(key);   // 不分配对象，负数是错误码
+    }
+    public BatchResult getIds(String key, int count) {
+        return idGen.get(key, count);   // 通过 idGen 批量获取 id
+    }
     public SegmentIDGenImpl getIdGen() {
         if (idGen instanceof SegmentIDGenImpl) {
             return (SegmentIDGenImpl) idGen;
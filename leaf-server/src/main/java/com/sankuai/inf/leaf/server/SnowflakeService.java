@@ -1,16 +1,22 @@
 package com.sankuai.inf.leaf.server;
 
 import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.BatchResult;
 import com.sankuai.inf.leaf.common.PropertyFactory;
 import com.sankuai.inf.leaf.common.Result;
 import com.sankuai.inf.leaf.common.ZeroIDGen;
 import com.sankuai.inf.leaf.server.exception.InitException;
+import com.sankuai.inf.leaf.snowflake.SnowflakeClock;
 import com.sankuai.inf.leaf.snowflake.SnowflakeIDGenImpl;
+import com.sankuai.inf.leaf.snowflake.SnowflakeLayout;
+import com.sankuai.inf.leaf.snowflake.model.SnowflakeId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 @Service("SnowflakeService")
 public class SnowflakeService {
@@ -22,7 +28,18 @@ public class SnowflakeService {
         if (flag) { // 如果开启了 snowflake 模式
             String zkAddress = properties.getProperty(Constants.LEAF_SNOWFLAKE_ZK_ADDRESS); // 获取注册中心地址
             int port = Integer.parseInt(properties.getProperty(Constants.LEAF_SNOWFLAKE_PORT)); // 获取注册中心的端口号
-            idGen = new SnowflakeIDGenImpl(zkAddress, port);    // 主要是构建了 SnowflakeZookeeperHolder，负责和 zookeeper 的交互，然后尝试从 zookeeper 获取 worker id，失败的情况下从本地获取 worker id
+            SnowflakeLayout layout = new SnowflakeLayout(   // id 的位布局，不合法或者容纳不下 worker id 时启动失败
+                    Long.parseLong(properties.getProperty(Constants.LEAF_SNOWFLAKE_EPOCH, String.valueOf(SnowflakeLayout.DEFAULT.getEpoch()))),
+                    Integer.parseInt(properties.getProperty(Constants.LEAF_SNOWFLAKE_WORKER_BITS, String.valueOf(SnowflakeLayout.DEFAULT.getWorkerIdBits()))),
+                    Integer.parseInt(properties.getProperty(Constants.LEAF_SNOWFLAKE_SEQUENCE_BITS, String.valueOf(SnowflakeLayout.DEFAULT.getSequenceBits()))));
+            layout.checkExpireHorizon(TimeUnit.DAYS.toMillis(  // 布局在这么多天之内就会用完时启动失败
+                    Long.parseLong(properties.getProperty(Constants.LEAF_SNOWFLAKE_EXPIRE_HORIZON_DAYS, "365"))));
+            SnowflakeIDGenImpl snowflake = new SnowflakeIDGenImpl(zkAddress, port, layout);    // 主要是构建了 SnowflakeZookeeperHolder，负责和 zookeeper 的交互，然后尝试从 zookeeper 获取 worker id，失败的情况下从本地获取 worker id
+            snowflake.setClock(SnowflakeClock.of(properties.getProperty(Constants.LEAF_SNOWFLAKE_CLOCK, "system")));    // 取号使用的时钟
+            snowflake.setMaxBorrowMillis(Long.parseLong(properties.getProperty(Constants.LEAF_SNOWFLAKE_MAX_BORROW, "0")));   // 逻辑时钟最多领先系统时钟的毫秒数
+            snowflake.setPerKeySequence(Boolean.parseBoolean(properties.getProperty(Constants.LEAF_SNOWFLAKE_PER_KEY, "false")));    // 每个 key 独立的序列号空间
+            snowflake.setMaxKeys(Integer.parseInt(properties.getProperty(Constants.LEAF_SNOWFLAKE_PER_KEY_MAX, "1024")));
+            idGen = snowflake;
             if(idGen.init()) {  // 如果服务启动完成，日志通知
                 logger.info("Snowflake Service Init Successfully");
             } else {
@@ -36,4 +53,27 @@ public class SnowflakeService {
     public Result getId(String key) {
         return idGen.get(key);
     }
+    public long nextId(String key) {
+        return idGen.nextId(key);   // 不分配对象，负数是错误码
+    }
+    public BatchResult getIds(String key, int count) {
+        return idGen.get(key, count);   // 一次 CAS 预留当前毫秒内的多个序列号
+    }
+    // 按配置的位布局拆开 id，没有开启 snowflake 模式时返回 null
+    public SnowflakeId decode(long id) {
+        SnowflakeIDGenImpl snowflake = getIdGen();
+        return snowflake == null ? null : snowflake.decode(id);
+    }
+    // 停止时钟的后台线程（ticker 时钟）
+    @PreDestroy
+    public void destroy() {
+        SnowflakeIDGenImpl snowflake = getIdGen();
+        if (snowflake != null) {
+            snowflake.getClock().close();
+        }
+    }
+    // 没有开启 snowflake 模式时为 null
+    public SnowflakeIDGenImpl getIdGen() {
+        return idGen instanceof SnowflakeIDGenImpl ? (SnowflakeIDGenImpl) idGen : null;
+    }
 }
@@ -0,0 +1,8 @@
+package com.sankuai.inf.leaf.server.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code=HttpStatus.SERVICE_UNAVAILABLE,reason="Warming up")
+public class NotReadyException extends RuntimeException {
+}
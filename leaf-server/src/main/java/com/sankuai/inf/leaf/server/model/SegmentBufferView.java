@@ -1,20 +1,17 @@
 package com.sankuai.inf.leaf.server.model;
 
+import java.util.List;
+
 /**
  *  buffer segment 的视图对象，可以理解为 pojo
  */
 public class SegmentBufferView {
     private String key;
-    private long value0;
-    private int step0;
-    private long max0;
-
-    private long value1;
-    private int step1;
-    private long max1;
-    private int pos;
+    private List<SegmentView> segments; //第一个是当前使用的segment，之后是已经装载好的segment
+    private int ringDepth;
     private boolean nextReady;
     private boolean initOk;
+    private long reserve;
 
     public String getKey() {
         return key;
@@ -24,60 +21,20 @@ public class SegmentBufferView {
         this.key = key;
     }
 
-    public long getValue1() {
-        return value1;
-    }
-
-    public void setValue1(long value1) {
-        this.value1 = value1;
-    }
-
-    public int getStep1() {
-        return step1;
-    }
-
-    public void setStep1(int step1) {
-        this.step1 = step1;
-    }
-
-    public long getMax1() {
-        return max1;
-    }
-
-    public void setMax1(long max1) {
-        this.max1 = max1;
-    }
-
-    public long getValue0() {
-        return value0;
-    }
-
-    public void setValue0(long value0) {
-        this.value0 = value0;
-    }
-
-    public int getStep0() {
-        return step0;
-    }
-
-    public void setStep0(int step0) {
-        this.step0 = step0;
+    public List<SegmentView> getSegments() {
+        return segments;
     }
 
-    public long getMax0() {
-        return max0;
+    public void setSegments(List<SegmentView> segments) {
+        this.segments = segments;
     }
 
-    public void setMax0(long max0) {
-        this.max0 = max0;
+    public int getRingDepth() {
+        return ringDepth;
     }
 
-    public int getPos() {
-        return pos;
-    }
-
-    public void setPos(int pos) {
-        this.pos = pos;
+    public void setRingDepth(int ringDepth) {
+        this.ringDepth = ringDepth;
     }
 
     public boolean isNextReady() {
@@ -88,6 +45,14 @@ public class SegmentBufferView {
         this.nextReady = nextReady;
     }
 
+    public long getReserve() {
+        return reserve;
+    }
+
+    public void setReserve(long reserve) {
+        this.reserve = reserve;
+    }
+
     public boolean isInitOk() {
         return initOk;
     }
@@ -0,0 +1,34 @@
+package com.sankuai.inf.leaf.server.model;
+
+/**
+ *  环中单个 segment 的视图对象
+ */
+public class SegmentView {
+    private long value;
+    private long max;
+    private int step;
+
+    public long getValue() {
+        return value;
+    }
+
+    public void setValue(long value) {
+        this.value = value;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public void setMax(long max) {
+        this.max = max;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    public void setStep(int step) {
+        this.step = step;
+    }
+}
@@ -12,6 +12,10 @@
 <th>tag</th>
 <th>max</th>
 <th>step</th>
+<th>chunk</th>
+<th>depth</th>
+<th>min step</th>
+<th>max step</th>
 <th>update</th>
 </tr>
 </thead>
@@ -22,6 +26,10 @@
 <td>${item.key}</td>
 <td>${item.maxId}</td>
 <td>${item.step}</td>
+<td>${item.chunkSize}</td>
+<td>${item.ringDepth}</td>
+<td>${item.minStep}</td>
+<td>${item.maxStep}</td>
 <td>${item.updateTime}</td>
 </tr>
 <tr>
@@ -12,13 +12,9 @@
         <th>name</th>
         <th>init</th>
         <th>next</th>
-        <th>pos</th>
-        <th>value0</th>
-        <th>max0</th>
-        <th>step0</th>
-        <th>value1</th>
-        <th>max1</th>
-        <th>step1</th>
+        <th>depth</th>
+        <th>segments (value / max / step)</th>
+        <th>reserve</th>
 
     </tr>
     </thead>
@@ -29,13 +25,13 @@
             <td>${key}</td>
             <td>${data[key].initOk?string('true','false')}</td>
             <td>${data[key].nextReady?string('true','false')}</td>
-            <td>${data[key].pos}</td>
-            <td>${data[key].value0}</td>
-            <td>${data[key].max0}</td>
-            <td>${data[key].step0}</td>
-            <td>${data[key].value1}</td>
-            <td>${data[key].max1}</td>
-            <td>${data[key].step1}</td>
+            <td>${data[key].ringDepth}</td>
+            <td>
+            <#list data[key].segments as segment>
+                ${segment.value} / ${segment.max} / ${segment.step}<#if segment_has_next><br></#if>
+            </#list>
+            </td>
+            <td>${data[key].reserve}</td>
         </tr>
         <tr>
         </tr>
@@ -44,5 +40,31 @@
     </#if>
     <tbody>
 </table>
+<#if loader?exists>
+<table class="table table-hover">
+    <thead>
+    <tr>
+        <th>queue</th>
+        <th>active</th>
+        <th>completed</th>
+        <th>rejected</th>
+        <#list loader.latencyHistogram?keys as bucket>
+        <th>${bucket}</th>
+        </#list>
+    </tr>
+    </thead>
+    <tbody>
+    <tr>
+        <td>${loader.queueDepth} / ${loader.queueCapacity}</td>
+        <td>${loader.activeCount}</td>
+        <td>${loader.completedCount}</td>
+        <td>${loader.rejectedCount}</td>
+        <#list loader.latencyHistogram?values as count>
+        <td>${count}</td>
+        </#list>
+    </tr>
+    </tbody>
+</table>
+</#if>
 </body>
 </html>
\ No newline at end of file
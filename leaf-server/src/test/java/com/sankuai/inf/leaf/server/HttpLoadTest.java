@@ -0,0 +1,164 @@
+package com.sankuai.inf.leaf.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地压测工具，比较 Tomcat（LeafController）和 NioHttpServer 的 QPS 与延迟分位数：
+ * 每个连接一个线程，keep-alive，一次发出 pipeline 个请求再依次读取响应，延迟从发出这一批请求开始计算。
+ * 用法：HttpLoadTest host port path [connections] [pipeline] [seconds]，例如
+ * 先后对 8080 和 8081 端口执行 HttpLoadTest localhost 8080 /api/segment/get/leaf-segment-test 64 1 30
+ */
+public class HttpLoadTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public static void main(String[] args) throws Exception {
+        final String host = args[0];
+        final int port = Integer.parseInt(args[1]);
+        String path = args[2];
+        int connections = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        final int pipeline = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 30;
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pipeline; i++) {
+            sb.append("GET ").append(path).append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n\r\n");
+        }
+        final byte[] request = sb.toString().getBytes(ASCII);
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final long[][] latencies = new long[connections][];
+        final int[] counts = new int[connections];
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(connections);
+        for (int c = 0; c < connections; c++) {
+            final int index = c;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] samples = new long[1 << 16];
+                    int n = 0;
+                    try {
+                        Socket socket = new Socket(host, port);
+                        socket.setTcpNoDelay(true);
+                        OutputStream out = socket.getOutputStream();
+                        ResponseReader in = new ResponseReader(socket.getInputStream());
+                        while (System.nanoTime() < deadline) {
+                            long start = System.nanoTime();
+                            out.write(request);
+                            for (int i = 0; i < pipeline; i++) {
+                                if (in.readResponse() != 200) {
+                                    errors.incrementAndGet();
+                                }
+                                if (n == samples.length) {
+                                    samples = Arrays.copyOf(samples, n * 2);
+                                }
+                                samples[n++] = System.nanoTime() - start;
+                            }
+                        }
+                        socket.close();
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        latencies[index] = samples;
+                        counts[index] = n;
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (int c = 0; c < connections; c++) {
+            System.arraycopy(latencies[c], 0, all, pos, counts[c]);
+            pos += counts[c];
+        }
+        Arrays.sort(all);
+        System.out.printf("requests=%d errors=%d qps=%.0f p50=%.1fus p99=%.1fus p999=%.1fus%n", total, errors.get(),
+                total / (double) seconds, percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, sorted.length * p)] / 1000.0;
+    }
+
+    /**
+     * 按 Content-Length 或 chunked 读完一个响应，返回状态码
+     */
+    private static class ResponseReader {
+        private final InputStream in;
+        private final byte[] buf = new byte[8192];
+        private int pos;
+        private int limit;
+
+        ResponseReader(InputStream in) {
+            this.in = in;
+        }
+
+        int readResponse() throws IOException {
+            String status = readLine();
+            int code = Integer.parseInt(status.substring(9, 12));
+            int length = 0;
+            boolean chunked = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                String lower = line.toLowerCase();
+                if (lower.startsWith("content-length:")) {
+                    length = Integer.parseInt(line.substring(15).trim());
+                } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                    chunked = true;
+                }
+            }
+            if (chunked) {
+                int size;
+                while ((size = Integer.parseInt(readLine().trim(), 16)) > 0) {
+                    skip(size);
+                    readLine();
+                }
+                readLine();
+            } else {
+                skip(length);
+            }
+            return code;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                int b = read();
+                if (b == '\n') {
+                    int len = sb.length();
+                    return len > 0 && sb.charAt(len - 1) == '\r' ? sb.substring(0, len - 1) : sb.toString();
+                }
+                sb.append((char) b);
+            }
+        }
+
+        private void skip(int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                read();
+            }
+        }
+
+        private int read() throws IOException {
+            if (pos == limit) {
+                limit = in.read(buf);
+                pos = 0;
+                if (limit <= 0) {
+                    throw new IOException("connection closed");
+                }
+            }
+            return buf[pos++] & 0xff;
+        }
+    }
+}
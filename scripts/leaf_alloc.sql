@@ -4,7 +4,26 @@ CREATE TABLE `leaf_alloc` (
   `biz_tag` varchar(128)  NOT NULL DEFAULT '',
   `max_id` bigint(20) NOT NULL DEFAULT '1',
   `step` int(11) NOT NULL,
+  `chunk_size` int(11) NOT NULL DEFAULT '0',
+  `ring_depth` int(11) NOT NULL DEFAULT '2',
+  `min_step` int(11) NOT NULL DEFAULT '0',
+  `max_step` int(11) NOT NULL DEFAULT '0',
   `description` varchar(256)  DEFAULT NULL,
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
-  PRIMARY KEY (`biz_tag`)
-) ENGINE=InnoDB;
\ No newline at end of file
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`biz_tag`),
+  KEY `idx_create_time` (`create_time`)
+) ENGINE=InnoDB;
+
+DROP TABLE IF EXISTS `leaf_alloc_tags_version`;
+
+CREATE TABLE `leaf_alloc_tags_version` (
+  `id` int(11) NOT NULL,
+  `version` bigint(20) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB;
+
+INSERT INTO `leaf_alloc_tags_version`(`id`, `version`) VALUES(1, 0);
+
+CREATE TRIGGER `leaf_alloc_tag_insert` AFTER INSERT ON `leaf_alloc` FOR EACH ROW UPDATE `leaf_alloc_tags_version` SET `version` = `version` + 1 WHERE `id` = 1;
+CREATE TRIGGER `leaf_alloc_tag_delete` AFTER DELETE ON `leaf_alloc` FOR EACH ROW UPDATE `leaf_alloc_tags_version` SET `version` = `version` + 1 WHERE `id` = 1;